@@ -34,11 +34,13 @@ public class Launcher {
         // 创建数据库文件
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        // 使用内存映射的页缓存打开数据库
+        options.addOption("mmap", false, "-mmap");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"));
             return;
         }
         if(cmd.hasOption("create")) {
@@ -52,9 +54,11 @@ public class Launcher {
         TransactionManager tm = TransactionManager.create(path);
         DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager.create(path, vm, dm);
-        tm.close();
+        TableManager tbm = TableManager.create(path, vm, dm);
+        // 后台清理使用数据管理器，最先停止；数据管理器关闭时要做检查点，同步xid文件，必须先于事务管理器关闭
+        tbm.close();
         dm.close();
+        tm.close();
     }
 
     /**
@@ -66,12 +70,13 @@ public class Launcher {
      *
      * @param path 数据库路径，指定数据库文件的位置。
      * @param mem 数据库内存配额，用于指定数据库在内存中使用的配额。
+     * @param mapped 是否使用内存映射的页缓存。
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, boolean mapped) {
         // 打开事务管理器
         TransactionManager tm = TransactionManager.open(path);
         // 打开数据管理器，初始化数据管理器并关联事务管理器
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, Runtime.getRuntime().availableProcessors(), mapped);
         // 创建版本管理器，用于管理数据库的版本
         VersionManager vm = new VersionManagerImpl(tm, dm);
         // 打开表管理器，初始化表管理器并关联版本管理和数据管理器
@@ -1,101 +1,256 @@
 package xiaolaa.main.mintdb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 import xiaolaa.main.mintdb.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ * 按key分段加锁，不同key的获取与释放互不阻塞；
+ * 同一key并发加载时，后来者等待加载线程的完成句柄，而不是轮询
+ *
+ * 指定了驱逐策略时，引用计数降为0的资源仍驻留在缓存中，
+ * 缓存满时由策略选出未被引用的资源驱逐；全部资源都被引用时等待释放，超时才抛出CacheFullException
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    // 分段锁的个数，必须为2的幂
+    private static final int STRIPES = 64;
+    // 缓存已满且全部被引用时，最多等待的时间
+    private static final long MAX_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long WAIT_SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private ConcurrentHashMap<Long, T> cache;                           // 实际缓存的数据
+    private ConcurrentHashMap<Long, Integer> references;                // 元素的引用个数
+    private ConcurrentHashMap<Long, CompletableFuture<T>> getting;      // 正在被加载的资源及其完成句柄
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                        // 缓存中元素的个数
+    private Lock[] locks;
+
+    private EvictionPolicy policy;                      // 驱逐策略，为null时引用归零即驱逐
+    private Lock evictLock;
+    private Condition unpinned;                         // 有资源的引用计数归零
+
+    private LongAdder hits;
+    private LongAdder misses;
+    private LongAdder evictions;
 
     public AbstractCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    public AbstractCache(int maxResource, EvictionPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = policy;
+        cache = new ConcurrentHashMap<>();
+        references = new ConcurrentHashMap<>();
+        getting = new ConcurrentHashMap<>();
+        count = new AtomicInteger(0);
+        locks = new Lock[STRIPES];
+        for(int i = 0; i < STRIPES; i ++) {
+            locks[i] = new ReentrantLock();
+        }
+        evictLock = new ReentrantLock();
+        unpinned = evictLock.newCondition();
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+    }
+
+    // key所在分段的锁，同一个key的所有状态变更都在该锁下进行
+    private Lock lockOf(long key) {
+        long h = key ^ (key >>> 32);
+        h ^= (h >>> 16);
+        return locks[(int)h & (STRIPES-1)];
     }
 
     public T get(long key) throws Exception {
+        CompletableFuture<T> loading;
         while(true) {
+            Lock lock = lockOf(key);
             lock.lock();
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
+            CompletableFuture<T> other = getting.get(key);
+            if(other != null) {
+                // 请求的资源正在被其他线程获取，等待其完成后重试
                 lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
+                awaitLoading(other);
                 continue;
             }
 
-            if(cache.containsKey(key)) {
+            T obj = cache.get(key);
+            if(obj != null) {
                 // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
+                int ref = references.get(key);
+                references.put(key, ref + 1);
+                if(policy != null) {
+                    policy.recordAccess(key);
+                    if(ref == 0) policy.setEvictable(key, false);
+                }
                 lock.unlock();
+                hits.increment();
                 return obj;
             }
 
-            // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            count ++;
-            getting.put(key, true);
+            // 登记正在获取该资源，再在锁外腾出缓存位置
+            loading = new CompletableFuture<>();
+            getting.put(key, loading);
             lock.unlock();
             break;
         }
+        misses.increment();
+
+        boolean reserved = false;
+        try {
+            reserved = reserve();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(!reserved) {
+            Lock lock = lockOf(key);
+            lock.lock();
+            getting.remove(key);
+            lock.unlock();
+            loading.completeExceptionally(Error.CacheFullException);
+            throw Error.CacheFullException;
+        }
 
         T obj = null;
         try {
             // 从磁盘中获取
             obj = getForCache(key);
         } catch(Exception e) {
+            Lock lock = lockOf(key);
             lock.lock();
-            count --;
+            count.decrementAndGet();
             getting.remove(key);
             lock.unlock();
+            loading.completeExceptionally(e);
             throw e;
         }
 
+        Lock lock = lockOf(key);
         lock.lock();
         getting.remove(key);
         // 放到缓存当中
         cache.put(key, obj);
         references.put(key, 1);
+        if(policy != null) {
+            policy.recordAccess(key);
+            policy.setEvictable(key, false);
+        }
         lock.unlock();
-        
+        loading.complete(obj);
+
         return obj;
     }
 
+    // 占用一个缓存位置，缓存已满时尝试驱逐或等待，仍无法腾出位置则返回false
+    private boolean reserve() throws InterruptedException {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        long deadline = System.nanoTime() + MAX_WAIT_NANOS;
+        while(true) {
+            int c = count.get();
+            if(c < maxResource) {
+                if(count.compareAndSet(c, c+1)) {
+                    return true;
+                }
+                continue;
+            }
+            if(policy == null) {
+                return false;
+            }
+            if(evictOne()) {
+                continue;
+            }
+            // 所有资源都被引用，等待有资源被释放
+            long remain = deadline - System.nanoTime();
+            if(remain <= 0) {
+                return false;
+            }
+            evictLock.lock();
+            try {
+                unpinned.awaitNanos(Math.min(remain, WAIT_SLICE_NANOS));
+            } finally {
+                evictLock.unlock();
+            }
+        }
+    }
+
+    // 驱逐一个未被引用的资源，没有可驱逐的资源时返回false
+    private boolean evictOne() {
+        long victim = policy.evict();
+        if(victim < 0) {
+            return false;
+        }
+        Lock lock = lockOf(victim);
+        lock.lock();
+        try {
+            Integer ref = references.get(victim);
+            // 已被移出缓存，由调用者重试
+            if(ref == null) {
+                return true;
+            }
+            if(ref != 0) {
+                // 在选出之后又被引用了（如pinIf不记录访问），策略已不再跟踪它，
+                // 重新登记，释放时才能再标记为可驱逐，由调用者重试
+                policy.recordAccess(victim);
+                policy.setEvictable(victim, false);
+                return true;
+            }
+            T obj = cache.remove(victim);
+            references.remove(victim);
+            policy.remove(victim);
+            releaseForCache(obj);
+            count.decrementAndGet();
+            evictions.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 等待其他线程加载完成，加载失败时由调用者重试
+    private void awaitLoading(CompletableFuture<T> loading) {
+        try {
+            loading.join();
+        } catch(Exception ignore) {
+        }
+    }
+
     /**
      * 强行释放一个缓存
      */
     public void release(long key) {
+        Lock lock = lockOf(key);
         lock.lock();
         try {
             int ref = references.get(key)-1;
-            if(ref == 0) {
+            if(ref == 0 && policy != null) {
+                // 留在缓存中，交由驱逐策略决定何时写回
+                references.put(key, 0);
+                policy.setEvictable(key, true);
+                evictLock.lock();
+                unpinned.signalAll();
+                evictLock.unlock();
+            } else if(ref == 0) {
                 T obj = cache.get(key);
                 releaseForCache(obj);
                 references.remove(key);
                 cache.remove(key);
-                count --;
+                count.decrementAndGet();
             } else {
                 references.put(key, ref);
             }
@@ -104,24 +259,60 @@ public abstract class AbstractCache<T> {
         }
     }
 
+    /**
+     * 对当前缓存中满足条件的资源各增加一次引用后返回，不会加载不在缓存中的资源
+     * 调用者负责逐个release
+     */
+    protected List<T> pinIf(Predicate<T> filter) {
+        List<T> pinned = new ArrayList<>();
+        for (long key : cache.keySet()) {
+            Lock lock = lockOf(key);
+            lock.lock();
+            try {
+                T obj = cache.get(key);
+                if(obj == null || !filter.test(obj)) continue;
+                int ref = references.get(key);
+                references.put(key, ref + 1);
+                if(ref == 0 && policy != null) policy.setEvictable(key, false);
+                pinned.add(obj);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return pinned;
+    }
+
     /**
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
+        for (long key : cache.keySet()) {
+            Lock lock = lockOf(key);
+            lock.lock();
+            try {
+                T obj = cache.remove(key);
+                if(obj == null) continue;
                 releaseForCache(obj);
                 references.remove(key);
-                cache.remove(key);
+                count.decrementAndGet();
+                if(policy != null) policy.remove(key);
+            } finally {
+                lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
 
     /**
      * 当资源不在缓存时的获取行为
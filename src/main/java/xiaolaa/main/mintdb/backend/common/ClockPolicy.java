@@ -0,0 +1,91 @@
+package xiaolaa.main.mintdb.backend.common;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CLOCK驱逐策略
+ * 所有被跟踪的key排成一个环，每个key有一个访问位。
+ * 指针绕环扫描：访问位为1的清零后跳过，遇到访问位为0且可驱逐的key即为牺牲者
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    static class Frame {
+        long key;
+        boolean referenced;
+        boolean evictable;
+    }
+
+    private List<Frame> ring;               // 环上的位置，被移除的位置为null
+    private Deque<Integer> freeSlots;       // 环上空闲的位置
+    private Map<Long, Frame> frames;
+    private Map<Long, Integer> slots;
+    private int hand;
+
+    public ClockPolicy() {
+        ring = new ArrayList<>();
+        freeSlots = new ArrayDeque<>();
+        frames = new HashMap<>();
+        slots = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void recordAccess(long key) {
+        Frame f = frames.get(key);
+        if(f == null) {
+            f = new Frame();
+            f.key = key;
+            int slot;
+            if(freeSlots.isEmpty()) {
+                slot = ring.size();
+                ring.add(f);
+            } else {
+                slot = freeSlots.pop();
+                ring.set(slot, f);
+            }
+            frames.put(key, f);
+            slots.put(key, slot);
+        }
+        f.referenced = true;
+    }
+
+    @Override
+    public synchronized void setEvictable(long key, boolean evictable) {
+        Frame f = frames.get(key);
+        if(f != null) {
+            f.evictable = evictable;
+        }
+    }
+
+    @Override
+    public synchronized long evict() {
+        int size = ring.size();
+        // 最多扫两圈：第一圈清访问位，第二圈必能找到可驱逐者（如果存在）
+        for(int i = 0; i < 2*size; i ++) {
+            if(hand >= size) hand = 0;
+            Frame f = ring.get(hand);
+            hand ++;
+            if(f == null || !f.evictable) continue;
+            if(f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            remove(f.key);
+            return f.key;
+        }
+        return -1;
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        Frame f = frames.remove(key);
+        if(f == null) return;
+        int slot = slots.remove(key);
+        ring.set(slot, null);
+        freeSlots.push(slot);
+    }
+}
@@ -0,0 +1,28 @@
+package xiaolaa.main.mintdb.backend.common;
+
+/**
+ * 缓存驱逐策略
+ * 策略只跟踪缓存中的key，引用计数仍由AbstractCache维护：
+ * 引用计数降为0的资源被标记为可驱逐，缓存满时由策略选出牺牲者
+ */
+public interface EvictionPolicy {
+    /**
+     * 记录一次对key的访问，key未被跟踪时开始跟踪
+     */
+    void recordAccess(long key);
+
+    /**
+     * 设置key是否可被驱逐
+     */
+    void setEvictable(long key, boolean evictable);
+
+    /**
+     * 选出一个可驱逐的key并停止跟踪它，没有可驱逐的key时返回-1
+     */
+    long evict();
+
+    /**
+     * 停止跟踪key
+     */
+    void remove(long key);
+}
@@ -0,0 +1,87 @@
+package xiaolaa.main.mintdb.backend.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * LRU-K驱逐策略
+ * 驱逐后向K距离（当前时刻与倒数第K次访问的时间差）最大的key；
+ * 访问不足K次的key距离视为无穷大，它们之间按最早一次访问的先后驱逐。
+ * 这样只被扫描过一次的页不会挤掉被反复访问的热点页
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    static class History {
+        long[] stamps;      // 最近K次访问的时间戳，环形存放
+        int count;          // 总访问次数
+        boolean evictable;
+
+        // 倒数第K次访问的时间，不足K次时返回最早一次访问的时间
+        long kthStamp(int k) {
+            if(count < k) {
+                return stamps[0];
+            }
+            return stamps[count % k];
+        }
+    }
+
+    private int k;
+    private long clock;
+    private Map<Long, History> histories;
+
+    public LruKPolicy(int k) {
+        if(k < 1) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.k = k;
+        histories = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void recordAccess(long key) {
+        History h = histories.get(key);
+        if(h == null) {
+            h = new History();
+            h.stamps = new long[k];
+            histories.put(key, h);
+        }
+        h.stamps[h.count % k] = clock ++;
+        h.count ++;
+    }
+
+    @Override
+    public synchronized void setEvictable(long key, boolean evictable) {
+        History h = histories.get(key);
+        if(h != null) {
+            h.evictable = evictable;
+        }
+    }
+
+    @Override
+    public synchronized long evict() {
+        long victim = -1;
+        boolean victimInf = false;
+        long victimStamp = Long.MAX_VALUE;
+        for(Map.Entry<Long, History> e : histories.entrySet()) {
+            History h = e.getValue();
+            if(!h.evictable) continue;
+            boolean inf = h.count < k;
+            long stamp = h.kthStamp(k);
+            // 距离无穷大的优先；同类之间时间戳越早距离越大
+            if(victim == -1 || (inf && !victimInf) || (inf == victimInf && stamp < victimStamp)) {
+                victim = e.getKey();
+                victimInf = inf;
+                victimStamp = stamp;
+            }
+        }
+        if(victim != -1) {
+            histories.remove(victim);
+        }
+        return victim;
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        histories.remove(key);
+    }
+}
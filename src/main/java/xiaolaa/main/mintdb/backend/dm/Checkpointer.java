@@ -0,0 +1,76 @@
+package xiaolaa.main.mintdb.backend.dm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台检查点线程
+ * 每隔interval执行一次DataManagerImpl.checkpoint，把脏页批量写回磁盘，
+ * 使前台的页写回不再需要同步磁盘，同时缩短宕机恢复时需要重做的日志
+ */
+class Checkpointer implements Runnable {
+
+    // 默认的检查点间隔
+    static final long DEFAULT_INTERVAL_MILLIS = 30_000;
+
+    private DataManagerImpl dm;
+    private long intervalNanos;
+    private Thread thread;
+
+    private Lock lock;
+    private Condition wakeUp;
+    private boolean stopped;
+
+    Checkpointer(DataManagerImpl dm, long intervalMillis) {
+        this.dm = dm;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+    }
+
+    void start() {
+        thread = new Thread(this, "checkpointer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            lock.lock();
+            try {
+                long remain = intervalNanos;
+                while(!stopped && remain > 0) {
+                    remain = wakeUp.awaitNanos(remain);
+                }
+                if(stopped) return;
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            dm.checkpoint();
+        }
+    }
+
+    /**
+     * 停止检查点线程，并等待正在进行的检查点完成
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            wakeUp.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if(thread == null || thread == Thread.currentThread()) return;
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,22 +1,40 @@
 package xiaolaa.main.mintdb.backend.dm;
 
+import java.io.File;
+
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
 import xiaolaa.main.mintdb.backend.dm.logger.Logger;
 import xiaolaa.main.mintdb.backend.dm.page.PageOne;
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
+import xiaolaa.main.mintdb.backend.dm.pageIndex.PageIndex;
 import xiaolaa.main.mintdb.backend.tm.TransactionManager;
 
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    /**
+     * 压缩pgno页，回收其中无效数据项的空间
+     * @param release 此前清理回收的数据项的uid是否已不可能被持有，是则它们的槽可以复用
+     * @return 该页是否需要之后再处理：页正被使用没能压缩，或还有等待复用的槽
+     */
+    boolean compactPage(int pgno, boolean release) throws Exception;
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, false);
+    }
+
+    /**
+     * @param mapped 是否使用内存映射的页缓存，两种页缓存的文件格式相同
+     */
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean mapped) {
+        PageCache pc = mapped ? PageCache.createMapped(path, mem) : PageCache.create(path, mem);
         Logger lg = Logger.create(path);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, new File(path+PageIndex.FSM_SUFFIX));
         dm.initPageOne();
+        tm.setLogger(lg);
+        dm.startCheckpointer(Checkpointer.DEFAULT_INTERVAL_MILLIS);
         return dm;
     }
 
@@ -28,17 +46,37 @@ public interface DataManager {
      * @return
      */
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param recoverParallelism 需要恢复时的重做线程数
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, int recoverParallelism) {
+        return open(path, mem, tm, recoverParallelism, false);
+    }
+
+    /**
+     * @param mapped 是否使用内存映射的页缓存
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, int recoverParallelism, boolean mapped) {
+        PageCache pc = mapped ? PageCache.openMapped(path, mem) : PageCache.open(path, mem);
         Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, new File(path+PageIndex.FSM_SUFFIX));
 
         // 如果数据库上一次没有正常关闭，则恢复数据
-        if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+        boolean closedCleanly = dm.loadCheckPageOne();
+        if(!closedCleanly) {
+            Recover.recover(tm, lg, pc, PageOne.getCheckpointLsn(dm.pageOne), recoverParallelism);
+            // 撤销不写日志，立即做一次检查点使撤销后的页落盘，此后的日志都在这些页的基础上重做
+            dm.checkpoint();
         }
-        dm.fillPageIndex();
+        // 正常关闭时读入空闲空间映射，不需要扫描所有页；必须在更换校验字节之前
+        dm.fillPageIndex(closedCleanly);
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        tm.setLogger(lg);
+        dm.startCheckpointer(Checkpointer.DEFAULT_INTERVAL_MILLIS);
 
         return dm;
     }
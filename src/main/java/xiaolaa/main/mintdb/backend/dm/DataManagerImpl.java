@@ -1,5 +1,15 @@
 package xiaolaa.main.mintdb.backend.dm;
 
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntPredicate;
+
 import xiaolaa.main.mintdb.backend.common.AbstractCache;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItemImpl;
@@ -21,14 +31,31 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
+    // 正常关闭时保存pIndex的文件
+    File fsmFile;
     Page pageOne;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    // 修改页面（写日志并改动页内容）时持有读锁；检查点拷贝脏页时持有写锁，保证拷贝中没有做了一半的修改
+    ReadWriteLock modifyLock;
+    // 串行化检查点，后一个检查点的日志必须在前一个的页写回之后
+    Lock checkpointLock;
+    Checkpointer checkpointer;
+    // 事务写下的第一条日志的LSN，用于判断哪些旧日志段不再需要
+    Map<Long, Long> firstLsns;
+    // 每一页被缓存的数据项个数，数据项直接引用页内的偏移，有数据项被缓存的页不能压缩
+    Map<Integer, Integer> cachedItems;
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, File fsmFile) {
         super(0);
+        this.fsmFile = fsmFile;
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.modifyLock = new ReentrantReadWriteLock();
+        this.checkpointLock = new ReentrantLock();
+        this.firstLsns = new ConcurrentHashMap<>();
+        this.cachedItems = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -48,45 +75,42 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
-        for(int i = 0; i < 5; i ++) {
-            // 尝试获取空闲页
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                // 如果没有空闲页，则新建一个页面
-                int newPgno = pc.newPage(PageX.initRaw());
-                // 将新创建的页面插入pIndex
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
-            }
-        }
+        // 尝试获取空闲页
+        PageInfo pi = pIndex.select(raw.length);
         if(pi == null) {
-            throw Error.DatabaseBusyException;
+            // 如果没有空闲页，则新建一个页面，直接由当前线程使用，
+            // 不先放进pIndex，避免并发插入时新页被其他线程抢走
+            int newPgno = pc.newPage(PageX.initRaw());
+            pi = new PageInfo(newPgno, PageX.MAX_FREE_SPACE);
         }
 
         Page pg = null;
         int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
-            // 获取一个insertLog
-            byte[] log = Recover.insertLog(xid, pg, raw);
-
-            // 将log写入日志文件
-            logger.log(log);
+            startModify();
+            try {
+                // 获取一个insertLog
+                byte[] log = Recover.insertLog(xid, pg, raw);
 
-            // 获得数据插入后的位置
-            short offset = PageX.insert(pg, raw);
+                // 将log写入日志文件
+                long lsn = logger.log(log);
+                firstLsns.putIfAbsent(xid, lsn);
 
-            // 持久化页面
-            pg.release();
-            // 使用uid映射pgno和offset
-            return Types.addressToUid(pi.pgno, offset);
+                // 获得数据插入后的槽号
+                short slot = PageX.insert(pg, raw);
+                PageX.setPageLsn(pg, lsn);
 
+                // 使用uid映射pgno和slot
+                return Types.addressToUid(pi.pgno, slot);
+            } finally {
+                endModify();
+            }
         } finally {
-            // 将取出的pg重新插入pIndex
+            // 将取出的pg重新插入pIndex，页被释放后其数组可能被复用，必须先读出空闲空间
             if(pg != null) {
                 pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                pg.release();
             } else {
                 pIndex.add(pi.pgno, freeSpace);
             }
@@ -95,35 +119,158 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public void close() {
+        if(checkpointer != null) {
+            checkpointer.stop();
+        }
         super.close();
+        // 先把所有脏页写回并同步，再标记正常关闭
+        checkpoint();
+        // 日志关闭后，事务状态改为直接同步xid文件
+        tm.setLogger(null);
         logger.close();
 
+        // 空闲空间映射必须在标记正常关闭之前落盘，否则下次打开时可能读到过期的文件
+        pIndex.save(fsmFile, PageOne.getVc(pageOne), pc.getPageNumber());
         PageOne.setVcClose(pageOne);
+        pc.flushPage(pageOne);
         pageOne.release();
         pc.close();
     }
 
-    // 为xid生成update日志
+    /**
+     * 执行一次检查点
+     * 在modifyLock的写锁下记下日志末尾的LSN并拷贝出所有脏页，此时拷贝反映了该LSN之前的全部日志；
+     * 锁外按页号顺序写回拷贝并同步一次，之后写入检查点日志，并在PageOne中记录其位置。
+     * 最后删除既不需要重做、也不含活跃事务日志的旧日志段
+     */
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long redoLsn;
+            long keepLsn;
+            int pageNumber;
+            List<Page> snapshots;
+            modifyLock.writeLock().lock();
+            try {
+                redoLsn = logger.endLsn();
+                pageNumber = pc.getPageNumber();
+                snapshots = pc.snapshotDirtyPages();
+                // 恢复时要撤销仍活跃的事务，需要保留它们的全部日志
+                keepLsn = redoLsn;
+                for(Map.Entry<Long, Long> e : firstLsns.entrySet()) {
+                    if(!tm.isActive(e.getKey())) {
+                        firstLsns.remove(e.getKey());
+                    } else if(e.getValue() < keepLsn) {
+                        keepLsn = e.getValue();
+                    }
+                }
+            } finally {
+                modifyLock.writeLock().unlock();
+            }
+            pc.writePages(snapshots);
+            // 检查点之前的提交和回滚可能只记录在将被删除的日志段中
+            tm.sync();
+
+            long lsn = logger.log(Recover.checkpointLog(redoLsn, pageNumber));
+            PageOne.setCheckpointLsn(pageOne, lsn);
+            pc.flushPage(pageOne);
+            logger.purge(keepLsn);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    void startCheckpointer(long intervalMillis) {
+        checkpointer = new Checkpointer(this, intervalMillis);
+        checkpointer.start();
+    }
+
+    // 开始修改页面，与检查点互斥
+    public void startModify() {
+        modifyLock.readLock().lock();
+    }
+
+    public void endModify() {
+        modifyLock.readLock().unlock();
+    }
+
+    // 为xid生成update日志，数据项已在before之后修改完毕，此时推进页LSN
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        long lsn = logger.log(log);
+        firstLsns.putIfAbsent(xid, lsn);
+        PageX.setPageLsn(di.page(), lsn);
     }
 
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
 
+    /**
+     * 压缩pgno页，回收其中无效数据项占用的空间，压缩后的空闲空间重新登记到pIndex
+     * 只压缩当前在pIndex中、且没有数据项被缓存的页，正在被插入或被引用的页留待下一次；
+     * 没有数据项被缓存说明也没有缓存项还指向被回收的槽
+     * @return 该页是否需要之后再处理
+     */
+    @Override
+    public boolean compactPage(int pgno, boolean release) throws Exception {
+        // 从pIndex中取出该页，压缩期间不会有插入落在该页上
+        PageInfo pi = pIndex.take(pgno);
+        if(pi == null) {
+            return true;
+        }
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+            byte[] data = pg.getData();
+            startModify();
+            pg.lock();
+            try {
+                if(cachedItems.containsKey(pgno)) {
+                    return true;
+                }
+                IntPredicate isLive = offset -> DataItem.isValidRaw(data, offset);
+                boolean purged = PageX.hasPurgedSlots(pg);
+                if(PageX.getDeadSpace(pg, isLive) == 0 && !(release && purged)) {
+                    return purged;
+                }
+                long lsn = logger.log(Recover.compactLog(pgno, release));
+                PageX.compact(pg, isLive, offset -> DataItem.isPurgedRaw(data, offset), release);
+                PageX.setPageLsn(pg, lsn);
+                return PageX.hasPurgedSlots(pg);
+            } finally {
+                pg.unlock();
+                endModify();
+            }
+        } finally {
+            if(pg != null) {
+                pIndex.add(pgno, PageX.getFreeSpace(pg));
+                pg.release();
+            } else {
+                pIndex.add(pgno, pi.freeSpace);
+            }
+        }
+    }
+
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
+        short slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        // 在页锁下登记并解析，与compactPage互斥
+        pg.lock();
+        try {
+            cachedItems.merge(pgno, 1, Integer::sum);
+            return DataItem.parseDataItem(pg, slot, this);
+        } finally {
+            pg.unlock();
+        }
     }
 
     @Override
     protected void releaseForCache(DataItem di) {
+        cachedItems.computeIfPresent(di.page().getPageNumber(), (k, v) -> v == 1 ? null : v-1);
         di.page().release();
     }
 
@@ -150,8 +297,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
-    void fillPageIndex() {
+    // 初始化pageIndex，上一次正常关闭时优先读入保存的空闲空间映射
+    void fillPageIndex(boolean closedCleanly) {
+        if(closedCleanly && pIndex.load(fsmFile, PageOne.getVc(pageOne), pc.getPageNumber())) {
+            return;
+        }
+        // 宕机后或映射文件缺失、过期时，读取每一页重建
         int pageNumber = pc.getPageNumber();
         for(int i = 2; i <= pageNumber; i ++) {
             Page pg = null;
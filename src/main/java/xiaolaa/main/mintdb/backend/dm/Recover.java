@@ -1,13 +1,14 @@
 package xiaolaa.main.mintdb.backend.dm;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
-import com.google.common.primitives.Bytes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import xiaolaa.main.mintdb.backend.common.SubArray;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
@@ -26,6 +27,10 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_COMMIT = 3;
+    private static final byte LOG_TYPE_ABORT = 4;
+    private static final byte LOG_TYPE_COMPACT = 5;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -33,16 +38,24 @@ public class Recover {
     static class InsertLogInfo {
         long xid;
         int pgno;
+        short slot;
         short offset;
         byte[] raw;
     }
 
+    static class CheckpointLogInfo {
+        // 该LSN之前的日志都已反映在检查点写回的页中
+        long redoLsn;
+        // 检查点时的页数
+        int pageNumber;
+    }
+
     static class UpdateLogInfo {
         long xid;
         // 数据所以在页
         int pgno;
-        // 数据在页中的偏移量
-        short offset;
+        // 数据在页中的槽号
+        short slot;
         byte[] oldRaw;
         byte[] newRaw;
     }
@@ -54,99 +67,202 @@ public class Recover {
      * @param pc 页缓存
      */
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, 0);
+    }
+
+    /**
+     * 恢复系统，从ckptLsn处的检查点开始重做
+     * @param ckptLsn 最近一次检查点日志的LSN，为0时重做全部日志
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long ckptLsn) {
+        recover(tm, lg, pc, ckptLsn, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 恢复系统
+     * 只顺序读一遍日志：redoLsn之后的修改日志不论事务状态都按页号分给parallelism个重做线程，
+     * 同一页的日志由同一个线程按顺序重做；
+     * 同一遍中根据状态日志补上xid文件中没有落盘的提交和回滚，并收集读到时仍活跃的事务的日志，
+     * 重做结束后对最终仍活跃的事务倒序撤销
+     * @param parallelism 重做线程数，不大于1时在当前线程中重做
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long ckptLsn, int parallelism) {
         System.out.println("Recovering...");
 
-        lg.rewind();
+        long redoLsn = 0;
         int maxPgno = 0;
+        CheckpointLogInfo ci = readCheckpoint(lg, ckptLsn);
+        if(ci != null) {
+            redoLsn = ci.redoLsn;
+            maxPgno = ci.pageNumber;
+            System.out.println("Redo from checkpoint at " + redoLsn + ".");
+        }
+
+        Redoer redoer = new Redoer(pc, parallelism);
+        Map<Long, List<byte[]>> logCache = new HashMap<>();
+        // 检查点之前的日志不需要重做，但活跃事务的日志仍要撤销，所以从头读起
+        lg.rewind();
         while(true) {
-            // 不断获取日志
+            long lsn = lg.position();
             byte[] log = lg.next();
             if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+            if(isCheckpointLog(log)) {
+                continue;
+            }
+            if(isCompactLog(log)) {
+                // 压缩不属于任何事务，只需要重做
+                int pgno = pgnoOf(log);
+                if(lsn >= redoLsn) {
+                    redoer.submit(pgno, lsn, log);
+                    if(pgno > maxPgno) {
+                        maxPgno = pgno;
+                    }
+                }
+                continue;
+            }
+            long xid = xidOf(log);
+            if(isStatusLog(log)) {
+                // 事务已结束，不需要撤销
+                if(log[0] == LOG_TYPE_COMMIT) {
+                    tm.commit(xid);
+                } else {
+                    tm.abort(xid);
+                }
+                logCache.remove(xid);
+                continue;
             }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
+            int pgno = pgnoOf(log);
+            if(tm.isActive(xid)) {
+                // 事务活跃，留待撤销
+                logCache.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+            }
+            if(lsn >= redoLsn) {
+                redoer.submit(pgno, lsn, log);
+                if(pgno > maxPgno) {
+                    maxPgno = pgno;
+                }
             }
         }
+        redoer.finish();
+        System.out.println("Redo Transactions Over.");
+
         if(maxPgno == 0) {
             maxPgno = 1;
         }
-
-        // 截断日志
+        // 截断日志，重做只会访问不超过maxPgno的页
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
+        undoTranscations(tm, pc, logCache);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
+    // 读取ckptLsn处的检查点日志，不存在或不是检查点日志时返回null
+    private static CheckpointLogInfo readCheckpoint(Logger lg, long ckptLsn) {
+        if(ckptLsn <= 0) {
+            return null;
+        }
+        lg.seek(ckptLsn);
+        byte[] log = lg.next();
+        if(log == null || !isCheckpointLog(log)) {
+            return null;
+        }
+        return parseCheckpointLog(log);
+    }
+
     /**
-     * 故障恢复，重做事务
-     * @param tm
-     * @param lg
-     * @param pc
+     * 重做日志
+     * LSN不大于页LSN的日志已经反映在页中，跳过；
+     * 按页号取模分给各个线程，同一页的日志按提交的顺序重做，不同页之间并行
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                // 事务不活跃
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
+    static class Redoer {
+        // 每个重做线程的队列长度，读日志的速度超过重做时阻塞
+        private static final int QUEUE_SIZE = 1024;
+
+        static class RedoTask {
+            long lsn;
+            byte[] log;
+        }
+
+        private PageCache pc;
+        private List<BlockingQueue<RedoTask>> queues;
+        private List<Thread> workers;
+
+        Redoer(PageCache pc, int parallelism) {
+            this.pc = pc;
+            this.queues = new ArrayList<>();
+            this.workers = new ArrayList<>();
+            if(parallelism <= 1) {
+                return;
+            }
+            for(int i = 0; i < parallelism; i ++) {
+                BlockingQueue<RedoTask> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+                Thread worker = new Thread(() -> work(queue), "redo-" + i);
+                queues.add(queue);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        void submit(int pgno, long lsn, byte[] log) {
+            if(queues.isEmpty()) {
+                redo(lsn, log);
+                return;
+            }
+            RedoTask task = new RedoTask();
+            task.lsn = lsn;
+            task.log = log;
+            put(queues.get(pgno % queues.size()), task);
+        }
+
+        // 通知所有线程结束，并等待已提交的日志重做完
+        void finish() {
+            for(BlockingQueue<RedoTask> queue : queues) {
+                put(queue, new RedoTask());
+            }
+            try {
+                for(Thread worker : workers) {
+                    worker.join();
                 }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
+            } catch(InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        private void work(BlockingQueue<RedoTask> queue) {
+            try {
+                while(true) {
+                    RedoTask task = queue.take();
+                    if(task.log == null) return;
+                    redo(task.lsn, task.log);
                 }
+            } catch(InterruptedException e) {
+                Panic.panic(e);
             }
         }
-    }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
+        private void redo(long lsn, byte[] log) {
             if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                // 事务活跃
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                doInsertLog(pc, log, lsn, REDO);
+            } else if(isCompactLog(log)) {
+                doCompactLog(pc, log, lsn);
             } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
+                doUpdateLog(pc, log, lsn, REDO);
+            }
+        }
+
+        private static void put(BlockingQueue<RedoTask> queue, RedoTask task) {
+            try {
+                queue.put(task);
+            } catch(InterruptedException e) {
+                Panic.panic(e);
             }
         }
+    }
 
+    private static void undoTranscations(TransactionManager tm, PageCache pc, Map<Long, List<byte[]>> logCache) {
         // 对所有active log进行倒序undo
         for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
             List<byte[]> logs = entry.getValue();
@@ -154,40 +270,106 @@ public class Recover {
                 // 倒序访问
                 byte[] log = logs.get(i);
                 if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
+                    doInsertLog(pc, log, 0, UNDO);
                 } else {
-                    doUpdateLog(pc, log, UNDO);
+                    doUpdateLog(pc, log, 0, UNDO);
                 }
             }
             tm.abort(entry.getKey());
         }
     }
 
+    // 只取出分派日志需要的字段，不拷贝日志内容
+    private static long xidOf(byte[] log) {
+        return ByteBuffer.wrap(log).getLong(OF_XID);
+    }
+
+    private static int pgnoOf(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        if(isInsertLog(log)) {
+            return buf.getInt(OF_INSERT_PGNO);
+        }
+        if(isCompactLog(log)) {
+            return buf.getInt(OF_COMPACT_PGNO);
+        }
+        return (int)(buf.getLong(OF_UPDATE_UID) >>> 32);
+    }
+
     private static boolean isInsertLog(byte[] log) {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static boolean isCompactLog(byte[] log) {
+        return log[0] == LOG_TYPE_COMPACT;
+    }
+
+    private static boolean isStatusLog(byte[] log) {
+        return log[0] == LOG_TYPE_COMMIT || log[0] == LOG_TYPE_ABORT;
+    }
+
+    // [LogType] [XID]
+    public static byte[] commitLog(long xid) {
+        return statusLog(LOG_TYPE_COMMIT, xid);
+    }
+
+    public static byte[] abortLog(long xid) {
+        return statusLog(LOG_TYPE_ABORT, xid);
+    }
+
+    private static byte[] statusLog(byte logType, long xid) {
+        byte[] log = new byte[OF_XID+8];
+        log[OF_TYPE] = logType;
+        Parser.putLong(log, OF_XID, xid);
+        return log;
+    }
+
+    public static byte[] checkpointLog(long redoLsn, int pageNumber) {
+        byte[] log = new byte[OF_CKPT_PAGES+4];
+        log[OF_TYPE] = LOG_TYPE_CHECKPOINT;
+        Parser.putLong(log, OF_CKPT_REDO, redoLsn);
+        Parser.putInt(log, OF_CKPT_PAGES, pageNumber);
+        return log;
+    }
+
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.redoLsn = Parser.parseLong(log, OF_CKPT_REDO);
+        ci.pageNumber = Parser.parseInt(log, OF_CKPT_PAGES);
+        return ci;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    // [LogType] [RedoLsn] [PageNumber]
+    private static final int OF_CKPT_REDO = OF_TYPE+1;
+    private static final int OF_CKPT_PAGES = OF_CKPT_REDO+8;
+
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        int length = raw.end - raw.start;
+        byte[] log = new byte[OF_UPDATE_RAW+oldRaw.length+length];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putLong(log, OF_UPDATE_UID, di.getUid());
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW+oldRaw.length, length);
+        return log;
     }
 
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.xid = Parser.parseLong(log, OF_XID);
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
+        li.slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -196,20 +378,20 @@ public class Recover {
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
+    private static void doUpdateLog(PageCache pc, byte[] log, long lsn, int flag) {
         int pgno;
-        short offset;
+        short slot;
         byte[] raw;
         if(flag == REDO) {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             // 更新新值
             raw = xi.newRaw;
         } else {
             UpdateLogInfo xi = parseUpdateLog(log);
             pgno = xi.pgno;
-            offset = xi.offset;
+            slot = xi.slot;
             raw = xi.oldRaw;
         }
         Page pg = null;
@@ -219,36 +401,46 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            if(flag == REDO) {
+                if(lsn <= PageX.getPageLsn(pg)) return;
+                PageX.setPageLsn(pg, lsn);
+            }
+            // 按槽找到数据当前的位置，页面可能在日志写下之后被压缩过
+            PageX.recoverUpdate(pg, raw, slot);
         } finally {
             // 刷新数据到磁盘
             pg.release();
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4;
+    private static final int OF_INSERT_OFFSET = OF_INSERT_SLOT+2;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] log = new byte[OF_INSERT_RAW+raw.length];
+        log[OF_TYPE] = LOG_TYPE_INSERT;
+        Parser.putLong(log, OF_XID, xid);
+        Parser.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        Parser.putShort(log, OF_INSERT_SLOT, PageX.nextSlot(pg));
+        Parser.putShort(log, OF_INSERT_OFFSET, PageX.nextOffset(pg, raw.length));
+        System.arraycopy(raw, 0, log, OF_INSERT_RAW, raw.length);
+        return log;
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.xid = Parser.parseLong(log, OF_XID);
+        li.pgno = Parser.parseInt(log, OF_INSERT_PGNO);
+        li.slot = Parser.parseShort(log, OF_INSERT_SLOT);
+        li.offset = Parser.parseShort(log, OF_INSERT_OFFSET);
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(PageCache pc, byte[] log, long lsn, int flag) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -257,16 +449,53 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if(flag == REDO) {
+                if(lsn <= PageX.getPageLsn(pg)) return;
+                PageX.setPageLsn(pg, lsn);
+            }
             if(flag == UNDO) {
 //                undo日志恢复
-                // 设置数据项为无效
+                // 设置数据项为无效，按槽写回，页面可能已被压缩
                 DataItem.setDataItemRawInvalid(li.raw);
+                PageX.recoverUpdate(pg, li.raw, li.slot);
+            } else {
+                // 插入日志恢复
+                PageX.recoverInsert(pg, li.raw, li.slot, li.offset);
             }
-            // 插入日志恢复
-            PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
             // 此时如果检查到pg是一个脏页，isDirty，会将其写入到磁盘中
             pg.release();
         }
     }
+
+    // [LogType] [Pgno] [Release]
+    private static final int OF_COMPACT_PGNO = OF_TYPE+1;
+    private static final int OF_COMPACT_RELEASE = OF_COMPACT_PGNO+4;
+
+    public static byte[] compactLog(int pgno, boolean release) {
+        byte[] log = new byte[OF_COMPACT_RELEASE+1];
+        log[OF_TYPE] = LOG_TYPE_COMPACT;
+        Parser.putInt(log, OF_COMPACT_PGNO, pgno);
+        log[OF_COMPACT_RELEASE] = (byte)(release ? 1 : 0);
+        return log;
+    }
+
+    // 压缩的结果只由页内容决定，按LSN顺序重做到该日志时页内容与当时一致，再压缩一次即可
+    private static void doCompactLog(PageCache pc, byte[] log, long lsn) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgnoOf(log));
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        byte[] data = pg.getData();
+        try {
+            if(lsn <= PageX.getPageLsn(pg)) return;
+            PageX.setPageLsn(pg, lsn);
+            boolean release = log[OF_COMPACT_RELEASE] == 1;
+            PageX.compact(pg, offset -> DataItem.isValidRaw(data, offset), offset -> DataItem.isPurgedRaw(data, offset), release);
+        } finally {
+            pg.release();
+        }
+    }
 }
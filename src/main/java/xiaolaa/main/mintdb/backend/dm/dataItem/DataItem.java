@@ -1,16 +1,19 @@
 package xiaolaa.main.mintdb.backend.dm.dataItem;
 
-import java.util.Arrays;
-
-import com.google.common.primitives.Bytes;
-
 import xiaolaa.main.mintdb.backend.common.SubArray;
 import xiaolaa.main.mintdb.backend.dm.DataManagerImpl;
 import xiaolaa.main.mintdb.backend.dm.page.Page;
+import xiaolaa.main.mintdb.backend.dm.page.PageX;
+import xiaolaa.main.mintdb.backend.tm.TransactionManagerImpl;
 import xiaolaa.main.mintdb.backend.utils.Parser;
 import xiaolaa.main.mintdb.backend.utils.Types;
 
 public interface DataItem {
+    // 一个数据项能容纳的最大数据长度，这样的数据项独占一页
+    int MAX_DATA_SIZE = PageX.MAX_FREE_SPACE - DataItemImpl.OF_DATA;
+    // 已被清理回收的数据项的ValidFlag，也是非法的
+    byte PURGED = 2;
+
     SubArray data();
     
     void before();
@@ -22,6 +25,14 @@ public interface DataItem {
     void unlock();
     void rLock();
     void rUnLock();
+    /**
+     * 开始一次不加锁的读，返回的戳在读完后交给validate检查，有写入正在进行时返回0
+     */
+    long tryOptimisticRead();
+    /**
+     * 检查从stamp获得以来数据项是否被修改过，没有修改过时读到的内容有效
+     */
+    boolean validate(long stamp);
 
     Page page();
     long getUid();
@@ -29,21 +40,58 @@ public interface DataItem {
     SubArray getRaw();
 
     public static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1];
-        byte[] size = Parser.short2Byte((short)raw.length);
-        return Bytes.concat(valid, size, raw);
+        byte[] item = new byte[DataItemImpl.OF_DATA+raw.length];
+        Parser.putShort(item, DataItemImpl.OF_SIZE, (short)raw.length);
+        System.arraycopy(raw, 0, item, DataItemImpl.OF_DATA, raw.length);
+        return item;
     }
 
-    // 从页面的offset处解析处dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    // 从页面的slot槽解析出dataitem，调用者持有页锁，防止解析时页面被压缩
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm) {
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
+        short offset = PageX.getOffset(pg, slot);
+        if(offset == 0) {
+            // 槽已作废，返回一个无效的数据项
+            byte[] raw = wrapDataItemRaw(new byte[0]);
+            setDataItemRawInvalid(raw);
+            return new DataItemImpl(new SubArray(raw, 0, raw.length), new byte[raw.length], pg, uid, dm);
+        }
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        short size = Parser.parseShort(raw, offset+DataItemImpl.OF_SIZE);
         short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
+    // 页面中offset处的数据项是否有效
+    public static boolean isValidRaw(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == (byte)0;
+    }
+
+    // 页面中offset处的数据项是否已被清理回收
+    public static boolean isPurgedRaw(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == PURGED;
+    }
+
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    // 将数据项标记为无效并写日志，之后read返回null，所在页压缩时回收其空间
+    public static void invalidate(DataItem di, long xid) {
+        di.before();
+        SubArray raw = di.getRaw();
+        raw.raw[raw.start+DataItemImpl.OF_VALID] = (byte)1;
+        di.after(xid);
+    }
+
+    /**
+     * 清理回收数据项：与invalidate相同，另外表示已没有索引项指向它，
+     * 所在页压缩后它的槽在之前开始的事务都结束后可以复用
+     */
+    public static void purge(DataItem di) {
+        di.before();
+        SubArray raw = di.getRaw();
+        raw.raw[raw.start+DataItemImpl.OF_VALID] = PURGED;
+        di.after(TransactionManagerImpl.SUPER_XID);
+    }
 }
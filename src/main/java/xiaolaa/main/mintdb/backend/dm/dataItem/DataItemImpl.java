@@ -1,5 +1,6 @@
 package xiaolaa.main.mintdb.backend.dm.dataItem;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -11,7 +12,7 @@ import xiaolaa.main.mintdb.backend.dm.page.Page;
 /**
  * dataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，0为合法，1为非法，2为已被清理回收（也是非法）
  * DataSize  2字节，标识Data的长度
  */
 public class DataItemImpl implements DataItem {
@@ -27,6 +28,8 @@ public class DataItemImpl implements DataItem {
     private DataManagerImpl dm;
     private long uid;
     private Page pg;
+    // 修改序号，修改期间为奇数，供不加锁的读检查读到的内容是否完整
+    private volatile long seq = 2;
 
     public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
@@ -50,7 +53,12 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public void before() {
+        // 先进入修改区再加数据项的锁，检查点只取modifyLock，不会与数据项锁形成环
+        dm.startModify();
         wLock.lock();
+        seq = seq + 1;
+        // 保证之后对数据的写入不会先于序号变为奇数被看到
+        VarHandle.storeStoreFence();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
@@ -58,13 +66,17 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        seq = seq + 1;
         wLock.unlock();
+        dm.endModify();
     }
 
     @Override
     public void after(long xid) {
+        seq = seq + 1;
         dm.logDataItem(xid, this);
         wLock.unlock();
+        dm.endModify();
     }
 
     @Override
@@ -92,6 +104,19 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        long s = seq;
+        return (s & 1) == 0 ? s : 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        // 保证之前对数据的读取先于再次读取序号完成
+        VarHandle.acquireFence();
+        return stamp != 0 && seq == stamp;
+    }
+
     @Override
     public Page page() {
         return pg;
@@ -1,25 +1,56 @@
 package xiaolaa.main.mintdb.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import xiaolaa.main.mintdb.backend.utils.Panic;
-import xiaolaa.main.mintdb.backend.utils.Parser;
 import xiaolaa.main.mintdb.common.Error;
 
 public interface Logger {
-    void log(byte[] data);
+    /**
+     * 追加一条日志，返回其LSN
+     */
+    long log(byte[] data);
+    /**
+     * 下一条日志将获得的LSN
+     */
+    long endLsn();
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    /**
+     * 下一次next返回的日志的LSN
+     */
+    long position();
+    /**
+     * 将读指针移动到lsn处，之后的next从该日志开始读取
+     */
+    void seek(long lsn);
+    /**
+     * 删除所有日志都在lsn之前的段，最后一个段总是保留
+     */
+    void purge(long lsn);
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
+        return create(path, LoggerImpl.DEFAULT_FLUSH_INTERVAL_MICROS, LoggerImpl.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param flushIntervalMicros 组提交时写入者等待更多日志的时间，0表示不等待
+     * @param batchSize 一次写入的最大字节数
+     */
+    public static Logger create(String path, long flushIntervalMicros, int batchSize) {
+        return create(path, flushIntervalMicros, batchSize, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize 每个日志段的大小，记录在段头中，打开时从已有的段读出
+     */
+    public static Logger create(String path, long flushIntervalMicros, int batchSize, int segmentSize) {
+        if(segmentSize < LoggerImpl.MIN_SEGMENT_SIZE) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        File f = LoggerImpl.segmentFile(path, 1);
         try {
             if(!f.createNewFile()) {
                 Panic.panic(Error.FileExistsException);
@@ -31,48 +62,18 @@ public interface Logger {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(path, segmentSize, flushIntervalMicros, batchSize);
+        lg.initNew();
+        return lg;
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
+        return open(path, LoggerImpl.DEFAULT_FLUSH_INTERVAL_MICROS, LoggerImpl.DEFAULT_BATCH_SIZE);
+    }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+    public static Logger open(String path, long flushIntervalMicros, int batchSize) {
+        LoggerImpl lg = new LoggerImpl(path, 0, flushIntervalMicros, batchSize);
         lg.init();
-
         return lg;
     }
 }
@@ -1,14 +1,21 @@
 package xiaolaa.main.mintdb.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
-import com.google.common.primitives.Bytes;
 
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.backend.utils.Parser;
@@ -16,89 +23,141 @@ import xiaolaa.main.mintdb.common.Error;
 
 /**
  * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
- * 
+ *
+ * 日志按固定大小分段存放，段文件名为 xxx.log.000001、xxx.log.000002 ...
+ * 每个段的格式为：
+ * [SegmentSize] [Log1] [Log2] ... [LogN] [BadTail]
+ * SegmentSize 4字节int，段的大小，所有段相同
+ *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int，Data的CRC32C
+ *
+ * 日志不跨段，放不下时从下一个段的开头写起；LSN = 段号 * SegmentSize + 段内偏移。
+ * 只有最后一个段可能有不完整的尾部，打开时只检查并截断最后一个段，
+ * 检查点之后不再需要的旧段可以整段删除
+ *
+ * 组提交：log只把日志放入待写队列并分配LSN，然后等待其落盘。
+ * 等待者中同一时刻只有一个会成为写入者，它取走队列中的一批日志，
+ * 按段写入，跨段时先同步前一个段再写下一个段，完成后唤醒所有等待者；
+ * 写入期间到达的日志由下一个写入者成批写入
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
-
     private static final int OF_SIZE = 0;
     private static final int OF_CHECKSUM = OF_SIZE + 4;
     private static final int OF_DATA = OF_CHECKSUM + 4;
-    
+
+    // 段头的长度，段内第一条日志的偏移
+    private static final int SEG_HEADER = 4;
+
     public static final String LOG_SUFFIX = ".log";
 
-    // 数据库数据文件*.db
-    private RandomAccessFile file;
-    private FileChannel fc;
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+    // 必须放得下最大的一条日志
+    static final int MIN_SEGMENT_SIZE = 1 << 16;
+
+    // 默认不额外等待，写入期间积累的日志自然成批
+    static final long DEFAULT_FLUSH_INTERVAL_MICROS = 0;
+    static final int DEFAULT_BATCH_SIZE = 1 << 20;
+
+    static class PendingLog {
+        long lsn;
+        byte[] log;
+    }
+
+    private String path;
+    private int segmentSize;
+    private ConcurrentSkipListMap<Long, FileChannel> segments;  // 段号 -> 段文件
     private Lock lock;
 
     private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    private long flushIntervalNanos;    // 写入者在写之前等待更多日志到达的时间
+    private int batchSize;              // 一批最多写入的字节数，待写日志达到该大小时写入者不再等待
+    private List<PendingLog> pending;   // 已分配LSN但还未写入的日志
+    private long pendingBytes;
+    private long appendLsn;             // 下一条日志的LSN
+    private long durableLsn;            // 此LSN之前的日志都已落盘
+    private boolean flushing;           // 是否已有写入者
+    private Condition flushed;          // 一批日志落盘
+    private Condition batchFull;        // 待写日志达到batchSize
+
+    LoggerImpl(String path, int segmentSize, long flushIntervalMicros, int batchSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
+        this.segments = new ConcurrentSkipListMap<>();
+        this.flushIntervalNanos = TimeUnit.MICROSECONDS.toNanos(flushIntervalMicros);
+        this.batchSize = batchSize;
+        this.pending = new ArrayList<>();
         lock = new ReentrantLock();
+        flushed = lock.newCondition();
+        batchFull = lock.newCondition();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    static File segmentFile(String path, long segNo) {
+        return new File(String.format("%s%s.%06d", path, LOG_SUFFIX, segNo));
+    }
+
+    // 在已创建的空文件中写入第一个段的段头
+    void initNew() {
+        FileChannel fc = openSegment(1);
+        writeSegmentHeader(fc);
+        segments.put(1L, fc);
+        appendLsn = durableLsn = lsnOf(1, SEG_HEADER);
+        rewind();
     }
 
     void init() {
-        long size = 0;
-        try {
-            // 获取db文件大小
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+        File f = segmentFile(path, 1);
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = new File(path + LOG_SUFFIX).getName() + ".";
+        File[] files = dir.listFiles((d, name) -> name.startsWith(prefix)
+                && name.length() == prefix.length() + 6
+                && name.substring(prefix.length()).chars().allMatch(Character::isDigit));
+        if(files == null || files.length == 0) {
+            Panic.panic(Error.FileNotExistsException);
         }
-        if(size < 4) {
-            Panic.panic(Error.BadLogFileException);
+        for(File file : files) {
+            if(!file.canRead() || !file.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+            long segNo = Long.parseLong(file.getName().substring(prefix.length()));
+            segments.put(segNo, openSegment(segNo));
         }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+        // 段大小记录在每个段的段头中，以第一个段为准
+        ByteBuffer raw = ByteBuffer.allocate(SEG_HEADER);
+        read(segments.firstEntry().getValue(), raw, 0);
+        this.segmentSize = Parser.parseInt(raw.array());
+        if(segmentSize < MIN_SEGMENT_SIZE) {
+            Panic.panic(Error.BadLogFileException);
         }
-        // 读取总的校验和
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
 
         checkAndRemoveTail();
     }
 
-    // 检查并移除bad tail，在数据操作的时候有可能执行一般就宕机了
+    // 检查并移除最后一个段的bad tail，在数据操作的时候有可能执行一般就宕机了
+    // 之前的段在切换到下一个段之前已经落盘，不需要检查
     private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        while(true) {
-            // 使用迭代器模式遍历日志
-            byte[] log = internNext();
-            if(log == null) break; // 会在检测到错误日志时退出
-            // 获取校验和总和
-            xCheck = calChecksum(xCheck, log);
+        Map.Entry<Long, FileChannel> tail = segments.lastEntry();
+        long tailSeg = tail.getKey();
+        FileChannel fc = tail.getValue();
+        try {
+            if(fc.size() < SEG_HEADER) {
+                // 创建段时宕机，段头不完整
+                fc.truncate(0);
+                writeSegmentHeader(fc);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
         }
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+
+        position = lsnOf(tailSeg, SEG_HEADER);
+        while(segmentOf(position) == tailSeg) {
+            // 会在检测到错误日志时退出
+            if(internNext() == null) break;
         }
 
         try {
@@ -107,108 +166,303 @@ public class LoggerImpl implements Logger {
         } catch (Exception e) {
             Panic.panic(e);
         }
-        try {
-            // 重置文件指针
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+        appendLsn = position;
+        durableLsn = position;
         rewind();
     }
 
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    private static int calChecksum(byte[] data, int off, int len) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, off, len);
+        return (int)crc.getValue();
     }
 
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
+        if(SEG_HEADER + log.length > segmentSize) {
+            Panic.panic(Error.DataTooLargeException);
+        }
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            if(offsetOf(appendLsn) + log.length > segmentSize) {
+                // 当前段放不下，从下一个段开始
+                appendLsn = lsnOf(segmentOf(appendLsn) + 1, SEG_HEADER);
+            }
+            long lsn = appendLsn;
+            appendLsn += log.length;
+            PendingLog pl = new PendingLog();
+            pl.lsn = lsn;
+            pl.log = log;
+            pending.add(pl);
+            pendingBytes += log.length;
+            if(pendingBytes >= batchSize) {
+                batchFull.signal();
+            }
+            // 等待自己的日志落盘，没有写入者时由自己来写
+            while(durableLsn < lsn + log.length) {
+                if(!flushing) {
+                    flushBatch();
+                } else {
+                    flushed.awaitUninterruptibly();
+                }
+            }
+            return lsn;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
     }
 
     /**
-     * 获取log的校验和并更新校验和
-     * @param log
+     * 作为写入者写出一批日志，调用时持有lock，IO期间释放lock
+     */
+    private void flushBatch() {
+        flushing = true;
+        try {
+            if(flushIntervalNanos > 0 && pendingBytes < batchSize) {
+                // 等待更多的日志加入这一批
+                batchFull.awaitNanos(flushIntervalNanos);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // 取出不超过batchSize的一批，至少一条
+        int n = 0;
+        long bytes = 0;
+        while(n < pending.size() && (n == 0 || bytes + pending.get(n).log.length <= batchSize)) {
+            bytes += pending.get(n).log.length;
+            n ++;
+        }
+        List<PendingLog> batch = new ArrayList<>(pending.subList(0, n));
+        pending.subList(0, n).clear();
+        pendingBytes -= bytes;
+        PendingLog last = batch.get(n-1);
+        long end = last.lsn + last.log.length;
+
+        lock.unlock();
+        try {
+            writeBatch(batch);
+        } finally {
+            lock.lock();
+            durableLsn = end;
+            flushing = false;
+            flushed.signalAll();
+        }
+    }
+
+    /**
+     * 写入一批日志，同一段内连续的日志合并为一次写，涉及的段各同步一次
+     * 一批跨越多个段时，先同步前一个段再写下一个段，宕机后较早的段总是完整的，
+     * 打开时只需检查最后一个段的尾部
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    private void writeBatch(List<PendingLog> batch) {
+        int i = 0;
+        while(i < batch.size()) {
+            long segNo = segmentOf(batch.get(i).lsn);
+            int j = i;
+            int bytes = 0;
+            while(j < batch.size() && segmentOf(batch.get(j).lsn) == segNo) {
+                bytes += batch.get(j).log.length;
+                j ++;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(bytes);
+            for(int k = i; k < j; k ++) {
+                buf.put(batch.get(k).log);
+            }
+            buf.flip();
+            FileChannel fc = segmentForWrite(segNo);
+            write(fc, buf, offsetOf(batch.get(i).lsn));
+            try {
+                fc.force(false);
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+            i = j;
+        }
+    }
+
+    // 获取要写入的段，不存在时新建
+    private FileChannel segmentForWrite(long segNo) {
+        FileChannel fc = segments.get(segNo);
+        if(fc != null) {
+            return fc;
+        }
+        File f = segmentFile(path, segNo);
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        fc = openSegment(segNo);
+        writeSegmentHeader(fc);
+        syncDirectory(f);
+        segments.put(segNo, fc);
+        return fc;
+    }
+
+    private FileChannel openSegment(long segNo) {
+        try {
+            return FileChannel.open(segmentFile(path, segNo).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    private void writeSegmentHeader(FileChannel fc) {
+        write(fc, ByteBuffer.wrap(Parser.int2Byte(segmentSize)), 0);
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         }
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    // 新建的段文件要同步所在目录，宕机后才能找到；部分平台不能打开目录，此时只能依赖文件系统
+    private static void syncDirectory(File f) {
+        try (FileChannel dir = FileChannel.open(f.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch(IOException ignore) {
+        }
+    }
+
+    private static void write(FileChannel fc, ByteBuffer buf, long offset) {
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static void read(FileChannel fc, ByteBuffer buf, long offset) {
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) break;
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private long lsnOf(long segNo, long offset) {
+        return segNo * segmentSize + offset;
+    }
+
+    private long segmentOf(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    private long offsetOf(long lsn) {
+        return lsn % segmentSize;
     }
 
     @Override
-    public void truncate(long x) throws Exception {
+    public long endLsn() {
         lock.lock();
         try {
-            fc.truncate(x);
+            return appendLsn;
         } finally {
             lock.unlock();
         }
     }
 
+    private byte[] wrapLog(byte[] data) {
+        byte[] log = new byte[OF_DATA+data.length];
+        Parser.putInt(log, OF_SIZE, data.length);
+        Parser.putInt(log, OF_CHECKSUM, calChecksum(data, 0, data.length));
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        return log;
+    }
+
     /**
-     * 获取下一个日志
-     * @return
+     * 截断到x处，x所在段之后的段全部删除
      */
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize) {
-            return null;
-        }
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    @Override
+    public void truncate(long x) throws Exception {
+        lock.lock();
         try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch(IOException e) {
-            Panic.panic(e);
+            long segNo = segmentOf(x);
+            for(long later : new ArrayList<>(segments.tailMap(segNo, false).keySet())) {
+                removeSegment(later);
+            }
+            segments.get(segNo).truncate(offsetOf(x));
+        } finally {
+            lock.unlock();
         }
-        // 读取日志大小
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
-            // 如果position + 日志大小 大于文件大小，说明数据不完整
-            return null;
+    }
+
+    @Override
+    public void purge(long lsn) {
+        long limit = segmentOf(lsn);
+        for(long segNo : new ArrayList<>(segments.headMap(limit, false).keySet())) {
+            if(segNo == segments.lastKey()) break;
+            removeSegment(segNo);
         }
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+    private void removeSegment(long segNo) {
+        FileChannel fc = segments.remove(segNo);
         try {
-            fc.position(position);
-            fc.read(buf);
+            fc.close();
         } catch(IOException e) {
             Panic.panic(e);
         }
+        segmentFile(path, segNo).delete();
+    }
 
-        byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        // 实际的校验和和预期校验和必须一致
-        if(checkSum1 != checkSum2) {
-            return null;
+    /**
+     * 获取下一个日志，读到一个段的末尾时转到下一个段
+     * @return
+     */
+    private byte[] internNext() {
+        while(true) {
+            long segNo = segmentOf(position);
+            long offset = offsetOf(position);
+            FileChannel fc = segments.get(segNo);
+            if(fc == null) {
+                return null;
+            }
+            long fileSize = 0;
+            try {
+                fileSize = fc.size();
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+
+            int size = -1;
+            if(offset + OF_DATA <= fileSize) {
+                ByteBuffer tmp = ByteBuffer.allocate(4);
+                read(fc, tmp, offset);
+                // 读取日志大小
+                size = Parser.parseInt(tmp.array());
+            }
+            if(size < 0 || offset + OF_DATA + size > fileSize) {
+                // 段内没有完整的日志了，最后一个段到此为止，否则转到下一个段
+                if(segNo == segments.lastKey()) {
+                    return null;
+                }
+                position = lsnOf(segNo + 1, SEG_HEADER);
+                continue;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+            read(fc, buf, offset);
+
+            byte[] log = buf.array();
+            int checkSum1 = calChecksum(log, OF_DATA, size);
+            int checkSum2 = Parser.parseInt(log, OF_CHECKSUM);
+            // 实际的校验和和预期校验和必须一致
+            if(checkSum1 != checkSum2) {
+                return null;
+            }
+            position += log.length;
+            return log;
         }
-        position += log.length;
-        return log;
     }
 
     @Override
@@ -225,17 +479,28 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void rewind() {
-        position = 4;
+        position = lsnOf(segments.firstKey(), SEG_HEADER);
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public void seek(long lsn) {
+        position = lsn;
     }
 
     @Override
     public void close() {
         try {
-            fc.close();
-            file.close();
+            for(FileChannel fc : segments.values()) {
+                fc.close();
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
     }
-    
+
 }
@@ -8,7 +8,7 @@ import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
 public class PageImpl implements Page {
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
+    private volatile boolean dirty;
     private Lock lock;
     
     private PageCache pc;
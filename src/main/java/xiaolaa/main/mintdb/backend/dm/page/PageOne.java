@@ -3,6 +3,7 @@ package xiaolaa.main.mintdb.backend.dm.page;
 import java.util.Arrays;
 
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
+import xiaolaa.main.mintdb.backend.utils.Parser;
 import xiaolaa.main.mintdb.backend.utils.RandomUtil;
 
 /**
@@ -10,10 +11,14 @@ import xiaolaa.main.mintdb.backend.utils.RandomUtil;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ *
+ * CheckpointLsn
+ * 116~123字节存放最近一次检查点日志的LSN，为0表示还没有检查点，恢复时从全部日志开始重做
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_CKPT = OF_VC + 2*LEN_VC;
 
     public static byte[] InitRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
@@ -46,4 +51,18 @@ public class PageOne {
     private static boolean checkVc(byte[] raw) {
         return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
     }
+
+    // 获取本次启动时写入的校验字节
+    public static byte[] getVc(Page pg) {
+        return Arrays.copyOfRange(pg.getData(), OF_VC, OF_VC+LEN_VC);
+    }
+
+    public static void setCheckpointLsn(Page pg, long lsn) {
+        pg.setDirty(true);
+        Parser.putLong(pg.getData(), OF_CKPT, lsn);
+    }
+
+    public static long getCheckpointLsn(Page pg) {
+        return Parser.parseLong(pg.getData(), OF_CKPT);
+    }
 }
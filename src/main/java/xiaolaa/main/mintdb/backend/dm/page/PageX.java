@@ -1,71 +1,264 @@
 package xiaolaa.main.mintdb.backend.dm.page;
 
 import java.util.Arrays;
+import java.util.function.IntPredicate;
 
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
 import xiaolaa.main.mintdb.backend.utils.Parser;
 
 /**
  * PageX管理普通页
- * 普通页结构
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * 普通页为槽页结构，槽目录从页头向后增长，数据从页尾向前增长
+ * [FreeSpaceOffset] [PageLSN] [SlotCount] [Slot0] [Slot1] ... [空闲空间] ... [Data]
+ * FreeSpaceOffset: 2字节 数据区的起始偏移
+ * PageLSN: 8字节 最后一条修改该页的日志的LSN，恢复时LSN不大于它的日志已经反映在页中，不需要重做
+ * SlotCount: 2字节 已分配的槽数
+ * Slot: 4字节 [Offset][Length]，数据在页中的位置和长度，Offset为0表示槽已作废，此时Length表示槽能否复用：
+ *   SLOT_DEAD    无效的数据项可能仍被引用，例如恢复时撤销的插入仍有索引项指向它，永不复用
+ *   SLOT_PURGED  数据项已被清理回收，没有索引项再指向它，但之前开始的事务可能仍持有它的uid
+ *   SLOT_FREE    可以复用，插入优先使用编号最小的可复用槽
+ *
+ * uid中记录的是槽号而不是偏移，压缩页面时数据可以移动而uid不变。
+ * 作废的槽只有确认不会再被访问后才复用，防止仍指向旧uid的引用读到其他数据：
+ * 压缩时由调用者判断，之前的SLOT_PURGED槽已不可能被访问时把它们变为SLOT_FREE，
+ * 目录末尾的SLOT_FREE槽直接去掉，因此反复插入和清理的页面槽目录不会无限增长
  */
 public class PageX {
-    
+
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    private static final short OF_LSN = 2;
+    private static final short OF_SLOT_COUNT = 10;
+    private static final short OF_SLOTS = 12;
+    private static final int SLOT_SIZE = 4;
+    // 作废的槽的Length
+    private static final short SLOT_DEAD = 0;
+    private static final short SLOT_PURGED = 1;
+    private static final short SLOT_FREE = -1;
+    // 每次插入除数据外还要占用一个槽
+    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_SLOTS - SLOT_SIZE;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        setFSO(raw, PageCache.PAGE_SIZE);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(byte[] raw, int fso) {
+        Parser.putShort(raw, OF_FREE, (short)fso);
     }
 
     // 获取pg的FSO
-    public static short getFSO(Page pg) {
+    public static int getFSO(Page pg) {
         return getFSO(pg.getData());
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int getFSO(byte[] raw) {
+        short fso = Parser.parseShort(raw, OF_FREE);
+        // 新建页不再立即同步磁盘，宕机后可能读到全0的页，视为空页
+        return fso < OF_SLOTS ? PageCache.PAGE_SIZE : fso;
+    }
+
+    public static long getPageLsn(Page pg) {
+        return Parser.parseLong(pg.getData(), OF_LSN);
+    }
+
+    // 将页的LSN推进到lsn，同一页上的修改可能并发地完成，页LSN只增不减
+    public static void setPageLsn(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if(lsn > getPageLsn(pg)) {
+                pg.setDirty(true);
+                Parser.putLong(pg.getData(), OF_LSN, lsn);
+            }
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    public static short getSlotCount(Page pg) {
+        return getSlotCount(pg.getData());
+    }
+
+    private static short getSlotCount(byte[] raw) {
+        return Parser.parseShort(raw, OF_SLOT_COUNT);
+    }
+
+    private static void setSlotCount(byte[] raw, int count) {
+        Parser.putShort(raw, OF_SLOT_COUNT, (short)count);
+    }
+
+    private static int slotPos(int slot) {
+        return OF_SLOTS + slot*SLOT_SIZE;
+    }
+
+    /**
+     * 获取槽中数据的偏移，槽不存在或已作废时返回0
+     */
+    public static short getOffset(Page pg, short slot) {
+        byte[] raw = pg.getData();
+        if(slot < 0 || slot >= getSlotCount(raw)) {
+            return 0;
+        }
+        return Parser.parseShort(raw, slotPos(slot));
+    }
+
+    private static short getLength(byte[] raw, int slot) {
+        return Parser.parseShort(raw, slotPos(slot)+2);
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int length) {
+        Parser.putShort(raw, slotPos(slot), (short)offset);
+        Parser.putShort(raw, slotPos(slot)+2, (short)length);
+    }
+
+    // 下一次插入将使用的槽号，有可复用的槽时取编号最小的一个
+    public static short nextSlot(Page pg) {
+        return nextSlot(pg.getData());
+    }
+
+    private static short nextSlot(byte[] raw) {
+        int count = getSlotCount(raw);
+        for(int slot = 0; slot < count; slot ++) {
+            if(isTombstone(raw, slot, SLOT_FREE)) {
+                return (short)slot;
+            }
+        }
+        return (short)count;
+    }
+
+    private static boolean isTombstone(byte[] raw, int slot, short kind) {
+        return Parser.parseShort(raw, slotPos(slot)) == 0 && getLength(raw, slot) == kind;
+    }
+
+    // 下一次插入长度为length的数据时的偏移
+    public static short nextOffset(Page pg, int length) {
+        return (short)(getFSO(pg) - length);
     }
 
-    // 将raw插入pg中，返回插入位置
+    // 将raw插入pg中，返回其槽号
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        byte[] data = pg.getData();
+        short slot = nextSlot(data);
+        int offset = getFSO(data) - raw.length;
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setSlot(data, slot, offset, raw.length);
+        if(slot == getSlotCount(data)) {
+            setSlotCount(data, slot+1);
+        }
+        setFSO(data, offset);
+        return slot;
     }
 
-    // 获取页面的空闲空间大小
+    // 获取页面的空闲空间大小，已扣除新数据需要的槽
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        int free = getFSO(raw) - slotPos(getSlotCount(raw)) - SLOT_SIZE;
+        return Math.max(free, 0);
     }
 
-    // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    // 将raw插入pg中的offset位置并登记到slot，用于重做插入
+    public static void recoverInsert(Page pg, byte[] raw, short slot, short offset) {
         pg.setDirty(true);
+        byte[] data = pg.getData();
         // 将数据重新插入到pg中
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setSlot(data, slot, offset, raw.length);
 
-        // 设置空闲位置
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        // 设置槽数和空闲位置
+        if(getSlotCount(data) <= slot) {
+            setSlotCount(data, slot+1);
+        }
+        if(getFSO(data) > offset) {
+            setFSO(data, offset);
         }
     }
 
-    // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    // 将raw写入slot当前指向的位置，槽已作废时忽略
+    public static void recoverUpdate(Page pg, byte[] raw, short slot) {
+        short offset = getOffset(pg, slot);
+        if(offset == 0) {
+            return;
+        }
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
+
+    /**
+     * 计算压缩pg能回收的字节数
+     * @param isLive 按偏移判断数据是否仍然有效
+     */
+    public static int getDeadSpace(Page pg, IntPredicate isLive) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        int dead = 0;
+        for(int slot = 0; slot < count; slot ++) {
+            short offset = getOffset(pg, (short)slot);
+            if(offset != 0 && !isLive.test(offset)) {
+                dead += getLength(raw, slot);
+            }
+        }
+        return dead;
+    }
+
+    // 页面中是否有等待复用的SLOT_PURGED槽
+    public static boolean hasPurgedSlots(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        for(int slot = 0; slot < count; slot ++) {
+            if(isTombstone(raw, slot, SLOT_PURGED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 压缩页面：作废无效数据的槽，把有效数据按原有顺序紧挨着移到页尾
+     * 结果只由页的内容和release决定，重做压缩日志时得到相同的布局
+     * 调用者保证此时没有对该页数据的引用
+     * @param isLive 按偏移判断数据是否仍然有效
+     * @param isPurged 按偏移判断无效的数据是否已被清理回收，回收的槽作废为SLOT_PURGED，其余为SLOT_DEAD
+     * @param release 此前作废为SLOT_PURGED的槽是否已不可能被访问，是则变为可复用
+     */
+    public static void compact(Page pg, IntPredicate isLive, IntPredicate isPurged, boolean release) {
+        pg.setDirty(true);
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        // 有效数据的槽号，按偏移从大到小排列
+        Integer[] live = new Integer[count];
+        int n = 0;
+        for(int slot = 0; slot < count; slot ++) {
+            short offset = getOffset(pg, (short)slot);
+            if(offset == 0) {
+                // 先处理已有的槽，本次作废的槽要等下一次压缩
+                if(release && getLength(raw, slot) == SLOT_PURGED) {
+                    setSlot(raw, slot, 0, SLOT_FREE);
+                }
+                continue;
+            }
+            if(isLive.test(offset)) {
+                live[n ++] = slot;
+            } else {
+                setSlot(raw, slot, 0, isPurged.test(offset) ? SLOT_PURGED : SLOT_DEAD);
+            }
+        }
+        while(count > 0 && isTombstone(raw, count-1, SLOT_FREE)) {
+            count --;
+        }
+        setSlotCount(raw, count);
+        Arrays.sort(live, 0, n, (a, b) -> getOffset(pg, (short)(int)b) - getOffset(pg, (short)(int)a));
+
+        // 从页尾开始放置，新位置不小于旧位置，不会覆盖尚未移动的数据
+        int fso = PageCache.PAGE_SIZE;
+        for(int i = 0; i < n; i ++) {
+            int slot = live[i];
+            short offset = getOffset(pg, (short)slot);
+            short length = getLength(raw, slot);
+            fso -= length;
+            System.arraycopy(raw, offset, raw, fso, length);
+            setSlot(raw, slot, fso, length);
+        }
+        setFSO(raw, fso);
+    }
 }
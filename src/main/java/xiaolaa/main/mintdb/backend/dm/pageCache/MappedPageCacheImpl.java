@@ -0,0 +1,278 @@
+package xiaolaa.main.mintdb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import xiaolaa.main.mintdb.backend.common.AbstractCache;
+import xiaolaa.main.mintdb.backend.common.EvictionPolicy;
+import xiaolaa.main.mintdb.backend.dm.page.Page;
+import xiaolaa.main.mintdb.backend.dm.page.PageImpl;
+import xiaolaa.main.mintdb.backend.utils.Panic;
+import xiaolaa.main.mintdb.common.Error;
+import sun.misc.Unsafe;
+
+/**
+ * 基于内存映射的页缓存
+ * .db文件按SEGMENT_SIZE分段映射为MappedByteBuffer，页的读写直接在映射区上进行，
+ * 不经过read/write系统调用，也不需要全局的文件锁，由操作系统的页缓存负责换入换出。
+ * 文件格式与PageCacheImpl相同，两者可以打开同一个数据库文件。
+ *
+ * 映射段随newPage按整段扩展，文件的物理长度可能大于页数，close时先解除全部映射，再截断回实际页数；
+ * 宕机时来不及截断，打开时去掉文件末尾扩展出的全0页；
+ * 写入过的映射段记为脏段，检查点只同步脏段；
+ * 被驱逐页的数组会被回收，供下一次未命中复用
+ */
+public class MappedPageCacheImpl extends AbstractCache<Page> implements PageCache {
+
+    private static final int MEM_MIN_LIM = 10;
+    // 每个映射段的大小，必须是页大小的整数倍
+    static final int SEGMENT_SIZE = 1 << 24;
+    private static final int PAGES_PER_SEGMENT = SEGMENT_SIZE / PAGE_SIZE;
+    // 回收的页数组最多保留的个数
+    private static final int MAX_FREE_FRAMES = 64;
+
+    private RandomAccessFile file;
+    private FileChannel fc;
+    private volatile MappedByteBuffer[] segments;
+    private Lock mapLock;
+    private Queue<byte[]> freeFrames;
+    // 上次同步以来写入过的映射段下标
+    private Set<Integer> dirtySegments;
+
+    private AtomicInteger pageNumbers;
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, EvictionPolicy policy) {
+        super(maxResource, policy);
+        if(maxResource < MEM_MIN_LIM) {
+            Panic.panic(Error.MemTooSmallException);
+        }
+        long length = 0;
+        try {
+            length = file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        this.file = file;
+        this.fc = fileChannel;
+        this.segments = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+        this.freeFrames = new ConcurrentLinkedQueue<>();
+        this.dirtySegments = ConcurrentHashMap.newKeySet();
+        this.pageNumbers = new AtomicInteger(trimZeroTail((int)(length / PAGE_SIZE)));
+    }
+
+    /**
+     * 从文件末尾向前去掉全0的页并截断文件，返回剩余的页数
+     * 此时文件还没有被映射，可以缩短。新建的页都有非0的页头，全0的尾部只可能是宕机前映射段扩展出的部分；
+     * 即使去掉了宕机前尚未写回的新页，恢复时truncateByBgno也会按日志把页数设回
+     */
+    private int trimZeroTail(int pages) {
+        byte[] buf = new byte[PAGE_SIZE];
+        try {
+            while(pages > 0) {
+                ByteBuffer bb = ByteBuffer.wrap(buf);
+                long pos = (long)(pages-1) * PAGE_SIZE;
+                while(bb.hasRemaining()) {
+                    if(fc.read(bb, pos + bb.position()) < 0) break;
+                }
+                if(!isZero(buf)) break;
+                pages --;
+            }
+            file.setLength((long)pages * PAGE_SIZE);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return pages;
+    }
+
+    private static boolean isZero(byte[] buf) {
+        for(byte b : buf) {
+            if(b != 0) return false;
+        }
+        return true;
+    }
+
+    public int newPage(byte[] initData) {
+        int pgno = pageNumbers.incrementAndGet();
+        Page pg = new PageImpl(pgno, initData, null);
+        flush(pg);
+        return pgno;
+    }
+
+    public Page getPage(int pgno) throws Exception {
+        return get((long)pgno);
+    }
+
+    /**
+     * 从映射区拷贝出页数据，优先复用被驱逐页的数组
+     */
+    @Override
+    protected Page getForCache(long key) throws Exception {
+        int pgno = (int)key;
+        byte[] data = freeFrames.poll();
+        if(data == null) {
+            data = new byte[PAGE_SIZE];
+        }
+        MappedByteBuffer seg = segmentOf(pgno);
+        seg.get(offsetInSegment(pgno), data, 0, PAGE_SIZE);
+        return new PageImpl(pgno, data, this);
+    }
+
+    @Override
+    protected void releaseForCache(Page pg) {
+        if(pg.isDirty()) {
+            flush(pg);
+            pg.setDirty(false);
+        }
+        if(freeFrames.size() < MAX_FREE_FRAMES) {
+            freeFrames.offer(pg.getData());
+        }
+    }
+
+    public void release(Page page) {
+        release((long)page.getPageNumber());
+    }
+
+    /**
+     * 写回页并同步到磁盘
+     */
+    public void flushPage(Page pg) {
+        flush(pg);
+        segmentOf(pg.getPageNumber()).force(offsetInSegment(pg.getPageNumber()), PAGE_SIZE);
+    }
+
+    private void flush(Page pg) {
+        int pgno = pg.getPageNumber();
+        segmentOf(pgno).put(offsetInSegment(pgno), pg.getData(), 0, PAGE_SIZE);
+        // 先写入再标记，同步时先取消标记再force，并发写入的段最迟在下一次同步时落盘
+        dirtySegments.add((pgno-1) / PAGES_PER_SEGMENT);
+    }
+
+    /**
+     * 同步所有脏段，没有写入过的段不再force
+     */
+    private void forceDirtySegments() {
+        for(Integer idx : dirtySegments) {
+            if(dirtySegments.remove(idx)) {
+                segments[idx].force();
+            }
+        }
+    }
+
+    public List<Page> snapshotDirtyPages() {
+        List<Page> dirty = pinIf(Page::isDirty);
+        List<Page> snapshots = new ArrayList<>(dirty.size());
+        for(Page pg : dirty) {
+            snapshots.add(new PageImpl(pg.getPageNumber(), Arrays.copyOf(pg.getData(), PAGE_SIZE), null));
+            pg.setDirty(false);
+        }
+        return snapshots;
+    }
+
+    /**
+     * 拷贝进映射区后，每个写入过的映射段只同步一次
+     */
+    public void writePages(List<Page> snapshots) {
+        try {
+            for(Page pg : snapshots) {
+                flush(pg);
+            }
+            forceDirtySegments();
+        } finally {
+            for(Page pg : snapshots) {
+                release((long)pg.getPageNumber());
+            }
+        }
+    }
+
+    // 获取pgno所在的映射段，必要时扩展映射
+    private MappedByteBuffer segmentOf(int pgno) {
+        int idx = (pgno-1) / PAGES_PER_SEGMENT;
+        MappedByteBuffer[] segs = segments;
+        if(idx < segs.length) {
+            return segs[idx];
+        }
+        mapLock.lock();
+        try {
+            segs = segments;
+            if(idx < segs.length) {
+                return segs[idx];
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(segs, idx+1);
+            for(int i = segs.length; i <= idx; i ++) {
+                // 以读写方式映射超出文件末尾的区域时，文件会被扩展
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, (long)i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            segments = grown;
+            return grown[idx];
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private static int offsetInSegment(int pgno) {
+        return ((pgno-1) % PAGES_PER_SEGMENT) * PAGE_SIZE;
+    }
+
+    /**
+     * 截断到maxPgno页
+     * 文件仍被映射时不能缩短，否则访问映射区会出错，物理截断推迟到close
+     */
+    public void truncateByBgno(int maxPgno) {
+        pageNumbers.set(maxPgno);
+    }
+
+    /**
+     * 关闭时先同步并解除全部映射，再把文件截断回实际页数
+     * 映射区仍存在时缩短文件，之后的访问会使进程崩溃，且部分平台不允许截断被映射的文件；
+     * MappedByteBuffer只有在被回收时才会解除映射，所以这里显式释放
+     */
+    @Override
+    public void close() {
+        super.close();
+        try {
+            forceDirtySegments();
+            MappedByteBuffer[] segs = segments;
+            segments = new MappedByteBuffer[0];
+            for(MappedByteBuffer seg : segs) {
+                unmap(seg);
+            }
+            file.setLength((long)pageNumbers.get() * PAGE_SIZE);
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    private static void unmap(MappedByteBuffer seg) {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            ((Unsafe)f.get(null)).invokeCleaner(seg);
+        } catch(ReflectiveOperationException e) {
+            Panic.panic(e);
+        }
+    }
+}
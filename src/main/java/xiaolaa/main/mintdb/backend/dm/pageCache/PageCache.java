@@ -3,8 +3,10 @@ package xiaolaa.main.mintdb.backend.dm.pageCache;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
+import java.util.List;
 
+import xiaolaa.main.mintdb.backend.common.ClockPolicy;
+import xiaolaa.main.mintdb.backend.common.EvictionPolicy;
 import xiaolaa.main.mintdb.backend.dm.page.Page;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.common.Error;
@@ -22,7 +24,52 @@ public interface PageCache {
     int getPageNumber();
     void flushPage(Page pg);
 
+    /**
+     * 检查点第一步：拷贝出所有驻留的脏页并清除其脏标记
+     * 调用期间不能有页面修改在进行；被拷贝的页在writePages写回之前保持被引用，不会被驱逐
+     */
+    List<Page> snapshotDirtyPages();
+    /**
+     * 检查点第二步：按页号顺序写回snapshotDirtyPages得到的拷贝，
+     * 相邻的页合并为一次写，全部写完后只同步一次磁盘，最后释放对原页的引用
+     */
+    void writePages(List<Page> snapshots);
+
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, new ClockPolicy());
+    }
+
+    public static PageCacheImpl create(String path, long memory, EvictionPolicy policy) {
+        RandomAccessFile raf = createFile(path);
+        return new PageCacheImpl(raf, raf.getChannel(), (int)memory/PAGE_SIZE, policy);
+    }
+
+    public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, new ClockPolicy());
+    }
+
+    public static PageCacheImpl open(String path, long memory, EvictionPolicy policy) {
+        RandomAccessFile raf = openFile(path);
+        return new PageCacheImpl(raf, raf.getChannel(), (int)memory/PAGE_SIZE, policy);
+    }
+
+    /**
+     * 使用内存映射的页缓存创建数据库文件
+     */
+    public static MappedPageCacheImpl createMapped(String path, long memory) {
+        RandomAccessFile raf = createFile(path);
+        return new MappedPageCacheImpl(raf, raf.getChannel(), (int)memory/PAGE_SIZE, new ClockPolicy());
+    }
+
+    /**
+     * 使用内存映射的页缓存打开数据库文件
+     */
+    public static MappedPageCacheImpl openMapped(String path, long memory) {
+        RandomAccessFile raf = openFile(path);
+        return new MappedPageCacheImpl(raf, raf.getChannel(), (int)memory/PAGE_SIZE, new ClockPolicy());
+    }
+
+    private static RandomAccessFile createFile(String path) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -35,18 +82,16 @@ public interface PageCache {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
         RandomAccessFile raf = null;
         try {
             raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return raf;
     }
 
-    public static PageCacheImpl open(String path, long memory) {
+    private static RandomAccessFile openFile(String path) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -55,14 +100,12 @@ public interface PageCache {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
         RandomAccessFile raf = null;
         try {
             raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return raf;
     }
 }
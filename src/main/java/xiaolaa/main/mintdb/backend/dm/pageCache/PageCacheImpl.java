@@ -4,29 +4,41 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import xiaolaa.main.mintdb.backend.common.AbstractCache;
+import xiaolaa.main.mintdb.backend.common.EvictionPolicy;
 import xiaolaa.main.mintdb.backend.dm.page.Page;
 import xiaolaa.main.mintdb.backend.dm.page.PageImpl;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.common.Error;
 
+/**
+ * 页缓存
+ * 引用计数归零的页仍驻留在缓存中，缓存满时由驱逐策略选出未被引用的页写回并移出
+ * 页的读写都使用带位置的read/write，不修改通道的position，不同页的IO可以并发进行
+ *
+ * 驱逐和新建页时的写回不同步磁盘，持久性由日志保证；
+ * 由检查点按页号顺序批量写回脏页，并在每个检查点只同步一次
+ */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
+    // 检查点合并写时，一次写入的最大页数
+    private static final int MAX_BATCH_PAGES = 64;
     public static final String DB_SUFFIX = ".db";
 
     private RandomAccessFile file;
     private FileChannel fc;
-    private Lock fileLock;
 
     private AtomicInteger pageNumbers;
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, EvictionPolicy policy) {
+        super(maxResource, policy);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -38,8 +50,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / PAGE_SIZE));
     }
 
     public int newPage(byte[] initData) {
@@ -62,14 +73,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         long offset = PageCacheImpl.pageOffset(pgno);
 
         ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            // 一次read可能读不满，读到文件末尾时剩余部分保持为0
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) break;
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
         return new PageImpl(pgno, buf.array(), this);
     }
 
@@ -85,24 +96,70 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release((long)page.getPageNumber());
     }
 
+    /**
+     * 写回页并同步到磁盘
+     */
     public void flushPage(Page pg) {
         flush(pg);
+        force();
     }
 
     private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+        write(pageOffset(pg.getPageNumber()), ByteBuffer.wrap(pg.getData()));
+    }
+
+    private void write(long offset, ByteBuffer buf) {
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
 
-        fileLock.lock();
+    private void force() {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
+        }
+    }
+
+    public List<Page> snapshotDirtyPages() {
+        List<Page> dirty = pinIf(Page::isDirty);
+        List<Page> snapshots = new ArrayList<>(dirty.size());
+        for(Page pg : dirty) {
+            snapshots.add(new PageImpl(pg.getPageNumber(), Arrays.copyOf(pg.getData(), PAGE_SIZE), null));
+            pg.setDirty(false);
+        }
+        return snapshots;
+    }
+
+    public void writePages(List<Page> snapshots) {
+        snapshots.sort(Comparator.comparingInt(Page::getPageNumber));
+        try {
+            int i = 0;
+            while(i < snapshots.size()) {
+                // 找出从i开始页号连续的一段，合并为一次写
+                int j = i + 1;
+                while(j < snapshots.size() && j - i < MAX_BATCH_PAGES
+                        && snapshots.get(j).getPageNumber() == snapshots.get(j-1).getPageNumber() + 1) {
+                    j ++;
+                }
+                ByteBuffer buf = ByteBuffer.allocate((j - i) * PAGE_SIZE);
+                for(int k = i; k < j; k ++) {
+                    buf.put(snapshots.get(k).getData());
+                }
+                buf.flip();
+                write(pageOffset(snapshots.get(i).getPageNumber()), buf);
+                i = j;
+            }
+            force();
         } finally {
-            fileLock.unlock();
+            for(Page pg : snapshots) {
+                release((long)pg.getPageNumber());
+            }
         }
     }
 
@@ -131,6 +188,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     public void close() {
         super.close();
+        force();
         try {
             fc.close();
             file.close();
@@ -144,7 +202,7 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
     private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+        return (long)(pgno-1) * PAGE_SIZE;
     }
     
 }
@@ -1,58 +1,174 @@
 package xiaolaa.main.mintdb.backend.dm.pageIndex;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
+import xiaolaa.main.mintdb.backend.utils.Panic;
 
 /**
  * 存储空闲页的位置，减少IO
+ * 每个区间是一个无锁的双端队列，add和select之间不再竞争同一把锁。
+ * 被select取出的页在重新add之前不会被其他线程选中，因此并发插入总是落在不同的页上
+ *
+ * 同时在内存中为每一页记录一个字节的空闲区间号，正常关闭时保存到.fsm文件：
+ * [Tag] [PageNumber] [Page1的区间号] ... [PageN的区间号]
+ * Tag: 8字节 关闭时PageOne的校验字节，与下次打开时的PageOne不一致说明文件已过期
+ * PageNumber: 4字节 保存时的页数
+ * 打开时读入.fsm即可重建索引，不需要读取每一页
  */
 public class PageIndex {
+    public static final String FSM_SUFFIX = ".fsm";
+
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private static final int LEN_TAG = 8;
+    private static final int LEN_HEADER = LEN_TAG + 4;
+    // 区间号按块存放，扩展时只拷贝块的引用，不会丢失并发写入的区间号
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private Deque<PageInfo>[] lists;
+    private volatile byte[][] chunks;
+    private Lock growLock;
 
     @SuppressWarnings("unchecked")
     public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+        lists = new Deque[INTERVALS_NO+1];
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists[i] = new ConcurrentLinkedDeque<>();
         }
+        chunks = new byte[0][];
+        growLock = new ReentrantLock();
     }
 
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
-        }
+        int number = freeSpace / THRESHOLD;
+        chunkOf(pgno)[pgno & (CHUNK_SIZE-1)] = (byte)number;
+        lists[number].offerLast(new PageInfo(pgno, freeSpace));
     }
 
     public PageInfo select(int spaceSize) {
-        lock.lock();
+        int number = spaceSize / THRESHOLD;
+        if(number < INTERVALS_NO) number ++;
+        while(number <= INTERVALS_NO) {
+            // 区间可能在判断后被其他线程取空，直接poll，取不到就看下一个区间
+            PageInfo pi = lists[number].pollFirst();
+            if(pi != null) {
+                return pi;
+            }
+            number ++;
+        }
+        return null;
+    }
+
+    /**
+     * 从索引中取出pgno页，该页不在索引中（例如正被插入线程使用）时返回null
+     */
+    public PageInfo take(int pgno) {
+        Deque<PageInfo> list = lists[numberOf(pgno)];
+        for(PageInfo pi : list) {
+            if(pi.pgno == pgno && list.removeFirstOccurrence(pi)) {
+                return pi;
+            }
+        }
+        return null;
+    }
+
+    private byte[] chunkOf(int pgno) {
+        int idx = pgno >>> CHUNK_SHIFT;
+        byte[][] cs = chunks;
+        if(idx < cs.length) {
+            return cs[idx];
+        }
+        growLock.lock();
         try {
-            int number = spaceSize / THRESHOLD;
-            if(number < INTERVALS_NO) number ++;
-            while(number <= INTERVALS_NO) {
-                if(lists[number].size() == 0) {
-                    number ++;
-                    continue;
+            cs = chunks;
+            if(idx >= cs.length) {
+                byte[][] grown = Arrays.copyOf(cs, idx+1);
+                for(int i = cs.length; i <= idx; i ++) {
+                    grown[i] = new byte[CHUNK_SIZE];
                 }
-                return lists[number].remove(0);
+                chunks = grown;
+                cs = grown;
             }
-            return null;
+            return cs[idx];
         } finally {
-            lock.unlock();
+            growLock.unlock();
+        }
+    }
+
+    private int numberOf(int pgno) {
+        byte[][] cs = chunks;
+        int idx = pgno >>> CHUNK_SHIFT;
+        return idx < cs.length ? cs[idx][pgno & (CHUNK_SIZE-1)] : 0;
+    }
+
+    /**
+     * 将前pageNumber页的空闲区间号写入f并同步，调用时不能有插入在进行
+     * 从未加入过索引的页记为区间0，下次打开时不会被选中
+     */
+    public void save(File f, byte[] tag, int pageNumber) {
+        ByteBuffer buf = ByteBuffer.allocate(LEN_HEADER + pageNumber);
+        buf.put(tag, 0, LEN_TAG).putInt(pageNumber);
+        for(int pgno = 1; pgno <= pageNumber; pgno ++) {
+            buf.put((byte)numberOf(pgno));
+        }
+        buf.flip();
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(false);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 从f中读入第2页到第pageNumber页的空闲区间号并加入索引
+     * 空闲空间按区间下界估计，只会偏小。文件不存在或与tag、pageNumber不符时返回false，索引不变
+     */
+    public boolean load(File f, byte[] tag, int pageNumber) {
+        if(!f.exists()) {
+            return false;
+        }
+        byte[] raw = null;
+        try {
+            raw = Files.readAllBytes(f.toPath());
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        if(raw.length != LEN_HEADER + pageNumber) {
+            return false;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(raw);
+        if(!Arrays.equals(Arrays.copyOf(raw, LEN_TAG), Arrays.copyOf(tag, LEN_TAG))
+            || buf.getInt(LEN_TAG) != pageNumber) {
+            return false;
+        }
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            int number = raw[LEN_HEADER + pgno - 1];
+            if(number < 0 || number > INTERVALS_NO) {
+                return false;
+            }
+        }
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            add(pgno, raw[LEN_HEADER + pgno - 1] * THRESHOLD);
         }
+        return true;
     }
 
 }
@@ -1,7 +1,8 @@
 package xiaolaa.main.mintdb.backend.im;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -10,26 +11,128 @@ import xiaolaa.main.mintdb.backend.common.SubArray;
 import xiaolaa.main.mintdb.backend.dm.DataManager;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
 import xiaolaa.main.mintdb.backend.im.Node.InsertAndSplitRes;
-import xiaolaa.main.mintdb.backend.im.Node.LeafSearchRangeRes;
+import xiaolaa.main.mintdb.backend.im.Node.LeafDeleteRes;
 import xiaolaa.main.mintdb.backend.im.Node.SearchNextRes;
 import xiaolaa.main.mintdb.backend.tm.TransactionManagerImpl;
 import xiaolaa.main.mintdb.backend.utils.Parser;
+import xiaolaa.main.mintdb.common.Error;
 
 /**
  * B+树
+ * 采用B-link协议：每个节点都有指向右侧兄弟的指针，节点分裂时先把右半部分移到新节点并链到兄弟指针上，
+ * 再把新节点插入父节点。任何时刻最多只持有一个节点的锁，在节点中找不到目标的操作沿兄弟指针向右继续，
+ * 读操作不加锁地读取节点，只在读取期间节点被修改时才加读锁重读
+ * 删除后项数少于balance/2的节点与相邻节点合并。合并之间由合并锁串行化，与读、插入和删除并发：
+ * 合并只锁住父节点和相邻的两个节点，先从父节点中移除右侧节点，再把它的项并入左侧节点，
+ * 最后把它标记为已删除，此后它不再能从根或兄弟指针到达。被合并的节点保持合并时的内容，
+ * 仍持有它的uid的读者读到的是合并时的结果并沿原来的兄弟指针继续；写者遇到它时从根重新定位。
+ * 被合并的节点占用的空间不回收
+ * 引导数据项结构：[RootUid][Balance]
+ * 旧版本创建的索引引导数据项中只有RootUid，balance为Node.DEFAULT_BALANCE_NUMBER
  */
 public class BPlusTree {
+    private static final int OF_ROOT = 0;
+    private static final int OF_BALANCE = OF_ROOT+8;
+    private static final int BOOT_SIZE = OF_BALANCE+2;
+
     DataManager dm;
     long bootUid; // 根节点的uid
     DataItem bootDataItem;
+    // 串行化根节点的更换，读取根节点uid不需要加锁
     Lock bootLock;
+    // 引导数据项中根节点uid的快照，只在持有bootLock时更新
+    volatile long rootUid;
+    // 节点的balance，决定扇出和节点大小
+    int balance;
+    // 串行化合并节点和降低树高，读、插入和删除不持有它
+    Lock mergeLock;
 
+    /**
+     * 创建一棵默认balance的B+树
+     * 节点是数据项，每次修改都把整个节点的前后镜像写入日志，节点越大每次插入写的日志越多，
+     * 占满一页的节点每次插入约写16KB日志，因此默认使用约1KB的节点
+     */
     public static long create(DataManager dm) throws Exception {
+        return create(dm, Node.DEFAULT_BALANCE_NUMBER);
+    }
+
+    /**
+     * 创建一棵B+树，节点分裂前最多容纳balance*2项
+     */
+    public static long create(DataManager dm, int balance) throws Exception {
+        if(balance < 2 || balance > Node.PAGE_BALANCE_NUMBER) {
+            throw Error.InvalidBalanceException;
+        }
         // 创建一个空节点
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(balance);
         // 节点持久化到磁盘里
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
-        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
+        byte[] boot = new byte[BOOT_SIZE];
+        Parser.putLong(boot, OF_ROOT, rootUid);
+        Parser.putShort(boot, OF_BALANCE, (short)balance);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, boot);
+    }
+
+    /**
+     * 由按key有序的(key, uid)批量建立一棵B+树，返回引导数据项的uid
+     * 自底向上逐层构造，每层从右向左写入，写入每个节点时它的右侧兄弟已经有了uid，
+     * 因此每个节点只插入一次，只产生一条插入日志，没有分裂和更新
+     * 节点装入balance*2-1项，之后的插入会先填满节点再分裂
+     */
+    public static long bulkLoad(DataManager dm, int balance, long[] keys, long[] uids) throws Exception {
+        if(balance < 2 || balance > Node.PAGE_BALANCE_NUMBER) {
+            throw Error.InvalidBalanceException;
+        }
+        if(keys.length != uids.length) {
+            throw Error.InvalidValuesException;
+        }
+        for(int i = 1; i < keys.length; i ++) {
+            if(keys[i-1] > keys[i]) {
+                throw Error.UnsortedBulkLoadException;
+            }
+        }
+        if(keys.length == 0) {
+            return create(dm, balance);
+        }
+
+        boolean isLeaf = true;
+        long[] sons = uids;
+        long[] firstKeys = keys;
+        // 叶子节点中是每一项的key，内部节点中是子节点的上界，即右侧下一个子节点的第一个key
+        long[] entryKeys = keys;
+        while(true) {
+            int n = sons.length;
+            int perNode = balance*2 - 1;
+            int nodes = (n + perNode - 1) / perNode;
+            long[] nodeUids = new long[nodes];
+            long[] nodeFirstKeys = new long[nodes];
+            long sibling = 0;
+            for(int j = nodes-1; j >= 0; j --) {
+                // 平均分配，避免最后一个节点过小
+                int from = (int)((long)n * j / nodes);
+                int to = (int)((long)n * (j+1) / nodes);
+                byte[] raw = Node.newRawFromEntries(isLeaf, sibling, sons, entryKeys, from, to-from, balance);
+                nodeUids[j] = dm.insert(TransactionManagerImpl.SUPER_XID, raw);
+                nodeFirstKeys[j] = firstKeys[from];
+                sibling = nodeUids[j];
+            }
+            if(nodes == 1) {
+                byte[] boot = new byte[BOOT_SIZE];
+                Parser.putLong(boot, OF_ROOT, nodeUids[0]);
+                Parser.putShort(boot, OF_BALANCE, (short)balance);
+                return dm.insert(TransactionManagerImpl.SUPER_XID, boot);
+            }
+            // 上一层的每一项指向本层的一个节点
+            long[] upperKeys = new long[nodes];
+            for(int j = 0; j < nodes-1; j ++) {
+                upperKeys[j] = nodeFirstKeys[j+1];
+            }
+            upperKeys[nodes-1] = Long.MAX_VALUE;
+            isLeaf = false;
+            sons = nodeUids;
+            firstKeys = nodeFirstKeys;
+            entryKeys = upperKeys;
+        }
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
@@ -40,43 +143,46 @@ public class BPlusTree {
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        t.mergeLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        t.balance = sa.end - sa.start < BOOT_SIZE ? Node.DEFAULT_BALANCE_NUMBER : Parser.parseShort(sa.raw, sa.start+OF_BALANCE);
+        t.rootUid = Parser.parseLong(sa.raw, sa.start+OF_ROOT);
         return t;
     }
 
     private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
-        } finally {
-            bootLock.unlock();
-        }
+        return rootUid;
     }
 
-    private void updateRootUid(long left, long right, long rightKey) throws Exception {
+    /**
+     * 根节点left分裂出right后，以它们为子节点建立新的根
+     * left已经不是根节点时返回false，说明其他线程已经建立了更高的根，分裂出的节点应插入上一层
+     */
+    private boolean updateRootUid(long left, long right, long rightKey) throws Exception {
         bootLock.lock();
         try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            if(rootUid != left) {
+                return false;
+            }
+            byte[] rootRaw = Node.newRootRaw(left, right, rightKey, balance);
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+            Parser.putLong(diRaw.raw, diRaw.start+OF_ROOT, newRootUid);
             bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            rootUid = newRootUid;
+            return true;
         } finally {
             bootLock.unlock();
         }
     }
 
     private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if(isLeaf) {
+        if(isLeaf(nodeUid)) {
             return nodeUid;
         } else {
             // 找到下一个我应该去哪一个节点内找这个key
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key, true);
             return searchLeaf(next, key);
         }
     }
@@ -90,12 +196,12 @@ public class BPlusTree {
      * @return 找到的下一个节点的UID。如果没有找到下一个节点，则返回0。
      * @throws Exception 如果加载节点或执行搜索操作时出现错误，则抛出异常。
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, long key, boolean first) throws Exception {
         while(true) {
             // 加载指定UID的节点
             Node node = Node.loadNode(this, nodeUid);
             // 在当前节点中搜索下一个匹配key的节点，并获取搜索结果
-            SearchNextRes res = node.searchNext(key);
+            SearchNextRes res = first ? node.searchFirst(key) : node.searchNext(key);
             // 释放当前节点的资源
             node.release();
             // 如果搜索结果中的uid不为0，则返回这个uid，表示找到了下一个节点
@@ -111,93 +217,283 @@ public class BPlusTree {
     }
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        // 搜索到根节点
-        long leafUid = searchLeaf(rootUid, leftKey);
+        Cursor cursor = cursor(leftKey, rightKey);
         List<Long> uids = new ArrayList<>();
-        while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if(res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
-            }
+        while(cursor.next()) {
+            uids.add(cursor.uid());
         }
         return uids;
     }
 
+    /**
+     * 返回key在[leftKey, rightKey]内的项的游标，按key的顺序读取
+     */
+    public Cursor cursor(long leftKey, long rightKey) throws Exception {
+        // 定位时可能进入已被合并的节点，它的内容保持合并时的样子，从它继续读取同样正确
+        long leafUid = searchLeaf(rootUid(), leftKey);
+        return new Cursor(this, leafUid, leftKey, rightKey);
+    }
+
     /**
      * 为一个数据以key值插入
+     * 下降时记录经过的内部节点，子节点分裂后把新节点插入记录的父节点，父节点已分裂时沿兄弟指针向右找
      * @param key
      * @param uid
      * @throws Exception
      */
     public void insert(long key, long uid) throws Exception {
-        // 获取根节点的uid
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        InsertRes res;
+        Deque<Long> path;
+        do {
+            path = new ArrayDeque<>();
+            long nodeUid = rootUid();
+            while(!isLeaf(nodeUid)) {
+                path.push(nodeUid);
+                nodeUid = searchNext(nodeUid, key, false);
+            }
+            // 在叶子节点才插入数据，叶子已被合并时从根重新定位
+            res = insertAndSplit(nodeUid, uid, key, 0);
+        } while(res.removed);
+        // 分裂的节点所在的层，叶子为第0层
+        int level = 0;
+        while(res.newNode != 0) {
+            if(path.isEmpty()) {
+                if(updateRootUid(res.splitNode, res.newNode, res.newKey)) {
+                    return;
+                }
+                // 下降之后根节点被其他线程分裂或降低，从新的根重新找到上一层的节点
+                path = pathTo(level+1, res.newKey);
+                continue;
+            }
+            // 分裂出的新节点的指针插入，紧跟在分裂的节点之后
+            InsertRes up = insertAndSplit(path.pop(), res.newNode, res.newKey, res.splitNode);
+            if(up.removed) {
+                // 记录的父节点已被合并或已不再是根
+                path = pathTo(level+1, res.newKey);
+                continue;
+            }
+            res = up;
+            level ++;
         }
     }
 
-    class InsertRes {
-        long newNode, newKey;
-    }
-
     /**
-     * 插入一个数据
-     * @param nodeUid
-     * @param uid 要插入的记录对应的uid，执行一行记录
-     * @param key 对应字段的实际值
-     * @return
-     * @throws Exception
+     * 从当前的根向下找到可能含有key的各层内部节点，只保留第level层及以上的，栈顶为第level层的节点
      */
-    private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
+    private Deque<Long> pathTo(int level, long key) throws Exception {
+        List<Long> nodes = new ArrayList<>();
+        long nodeUid = rootUid();
+        while(!isLeaf(nodeUid)) {
+            nodes.add(nodeUid);
+            nodeUid = searchNext(nodeUid, key, true);
+        }
+        // nodes中第i个节点位于第nodes.size()-i层
+        Deque<Long> path = new ArrayDeque<>();
+        for(int i = 0; i <= nodes.size()-level; i ++) {
+            path.push(nodes.get(i));
+        }
+        return path;
+    }
+
+    private boolean isLeaf(long nodeUid) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
-        // 是否是叶子节点
         boolean isLeaf = node.isLeaf();
         node.release();
+        return isLeaf;
+    }
 
-        InsertRes res = null;
-        if(isLeaf) {
-            // 在叶子节点才插入数据
-            res = insertAndSplit(nodeUid, uid, key);
-        } else {
-            // 获取下一个节点的uid
-            long next = searchNext(nodeUid, key);
-            InsertRes ir = insert(next, uid, key);
-            if(ir.newNode != 0) {
-                // 分裂出的新节点的指针插入
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
-            } else {
-                res = new InsertRes();
-            }
-        }
-        return res;
+    class InsertRes {
+        long newNode, newKey;
+        // 发生分裂的节点
+        long splitNode;
+        // 遇到了已被合并的节点，没有插入
+        boolean removed;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long key, long leftSon) throws Exception {
         while(true) {
             // 如果没找到key对应的节点，则往兄弟节点继续找
             Node node = Node.loadNode(this, nodeUid);
-            InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
+            InsertAndSplitRes iasr = node.insertAndSplit(uid, key, leftSon);
             node.release();
+            if(iasr.removed) {
+                InsertRes res = new InsertRes();
+                res.removed = true;
+                return res;
+            }
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.splitNode = nodeUid;
                 return res;
             }
         }
     }
 
+    /**
+     * 删除一个索引项，返回是否找到
+     * 叶子节点中剩余的项少于balance/2时，与相邻节点合并
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        Deque<Long> path;
+        long leafUid;
+        LeafDeleteRes res;
+        do {
+            path = new ArrayDeque<>();
+            leafUid = rootUid();
+            while(!isLeaf(leafUid)) {
+                path.push(leafUid);
+                leafUid = searchNext(leafUid, key, true);
+            }
+            while(true) {
+                Node leaf = Node.loadNode(this, leafUid);
+                res = leaf.leafDelete(key, uid);
+                leaf.release();
+                if(res.removed || res.deleted || res.siblingUid == 0) {
+                    break;
+                }
+                leafUid = res.siblingUid;
+            }
+            // 叶子已被合并时从根重新定位
+        } while(res.removed);
+        if(!res.deleted) {
+            return false;
+        }
+        if(res.noKeys < balance/2) {
+            mergeLock.lock();
+            try {
+                rebalance(path, leafUid);
+            } finally {
+                mergeLock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从nodeUid开始向上合并项数不足的节点，path为下降时经过的内部节点
+     * 下降之后其他删除可能已经合并了相关节点，遇到已删除的节点或找不到父节点时停止；
+     * 这里读到的节点内容只用于选择合并的对象，合并时在节点的锁下重新检查
+     */
+    private void rebalance(Deque<Long> path, long nodeUid) throws Exception {
+        while(true) {
+            Node node = Node.loadNode(this, nodeUid);
+            boolean removed = node.isRemoved();
+            boolean isLeaf = node.isLeaf();
+            int noKeys = node.getNoKeys();
+            long firstSon = node.getSon(0);
+            node.release();
+            if(removed) {
+                return;
+            }
+            if(path.isEmpty()) {
+                // 只有一个子节点的根没有意义，由子节点作为新的根
+                if(nodeUid == rootUid() && !isLeaf && noKeys == 1 && collapseRoot(nodeUid)) {
+                    nodeUid = firstSon;
+                    continue;
+                }
+                return;
+            }
+            if(noKeys >= balance/2) {
+                return;
+            }
+            long parentUid = findParent(path.pop(), nodeUid);
+            if(parentUid == 0) {
+                return;
+            }
+            Node parent = Node.loadNode(this, parentUid);
+            try {
+                int kth = parent.indexOfSon(nodeUid);
+                int parentKeys = parent.getNoKeys();
+                // 优先与父节点中右侧的兄弟合并，最右侧的子节点与左侧的兄弟合并
+                if(kth >= 0 && kth+1 < parentKeys) {
+                    if(!merge(parent, nodeUid, parent.getSon(kth+1))) return;
+                } else if(kth > 0) {
+                    if(!merge(parent, parent.getSon(kth-1), nodeUid)) return;
+                }
+            } finally {
+                parent.release();
+            }
+            nodeUid = parentUid;
+        }
+    }
+
+    /**
+     * 从记录的父节点开始沿兄弟指针向右寻找child的父节点，子节点分裂后父节点可能也已分裂
+     */
+    private long findParent(long parentUid, long child) throws Exception {
+        while(parentUid != 0) {
+            Node parent = Node.loadNode(this, parentUid);
+            boolean removed = parent.isRemoved();
+            int kth = parent.indexOfSon(child);
+            long sibling = parent.getSibling();
+            parent.release();
+            if(removed) {
+                return 0;
+            }
+            if(kth >= 0) {
+                return parentUid;
+            }
+            parentUid = sibling;
+        }
+        return 0;
+    }
+
+    /**
+     * 将parent中的子节点right并入它左侧的子节点left，合并后超过balance*2-1项时不合并
+     */
+    private boolean merge(Node parent, long leftUid, long rightUid) throws Exception {
+        Node left = Node.loadNode(this, leftUid);
+        Node right = Node.loadNode(this, rightUid);
+        try {
+            return Node.merge(parent, left, right, balance*2 - 1);
+        } finally {
+            left.release();
+            right.release();
+        }
+    }
+
+    /**
+     * 根节点只剩一个子节点时，以子节点为根，树高减一，返回是否降低
+     * 持有旧根的锁检查它仍是根、只有一个子节点且没有分裂到一半的兄弟，更换根之后把它标记为已删除；
+     * 之后要向旧根插入分裂出的节点的写者会从新的根重新定位
+     */
+    private boolean collapseRoot(long oldRoot) throws Exception {
+        Node node = Node.loadNode(this, oldRoot);
+        boolean collapsed = false;
+        node.dataItem.before();
+        try {
+            SubArray raw = node.raw;
+            if(rootUid != oldRoot || Node.getRawIfRemoved(raw) || Node.getRawIfLeaf(raw)
+                || Node.getRawNoKeys(raw) != 1 || Node.getRawSibling(raw) != 0) {
+                return false;
+            }
+            bootLock.lock();
+            try {
+                bootDataItem.before();
+                SubArray diRaw = bootDataItem.data();
+                Parser.putLong(diRaw.raw, diRaw.start+OF_ROOT, Node.getRawKthSon(raw, 0));
+                bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+                rootUid = Node.getRawKthSon(raw, 0);
+            } finally {
+                bootLock.unlock();
+            }
+            Node.setRawRemoved(raw);
+            collapsed = true;
+            return true;
+        } finally {
+            if(collapsed) {
+                node.dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                node.dataItem.unBefore();
+            }
+            node.release();
+        }
+    }
+
     public void close() {
         bootDataItem.release();
     }
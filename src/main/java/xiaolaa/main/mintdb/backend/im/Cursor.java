@@ -0,0 +1,68 @@
+package xiaolaa.main.mintdb.backend.im;
+
+import xiaolaa.main.mintdb.backend.im.Node.LeafScanRes;
+
+/**
+ * B+树范围查询的游标
+ * 沿兄弟指针逐个读取叶子，每次只缓存一个叶子中落在范围内的uid，内存占用与结果数量无关，
+ * 调用者可以在任何时候停止读取
+ * 一个叶子的内容在读取时一次取出，之后对它的修改不影响游标
+ */
+public class Cursor {
+    private BPlusTree tree;
+    private long leftKey, rightKey;
+    private long nextLeaf;
+    private long[] buf;
+    private int count, pos;
+    private long uid;
+    // 本游标读完后继续读取的游标
+    private Cursor then;
+
+    Cursor(BPlusTree tree, long leafUid, long leftKey, long rightKey) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.nextLeaf = leafUid;
+        this.buf = new long[Node.capacity(tree.balance)];
+    }
+
+    /**
+     * 依次读取first和second的结果
+     */
+    public static Cursor concat(Cursor first, Cursor second) {
+        Cursor c = first;
+        while(c.then != null) {
+            c = c.then;
+        }
+        c.then = second;
+        return first;
+    }
+
+    /**
+     * 移动到下一个uid，没有更多结果时返回false
+     */
+    public boolean next() throws Exception {
+        while(pos == count) {
+            if(nextLeaf == 0) {
+                if(then == null || !then.next()) {
+                    return false;
+                }
+                uid = then.uid;
+                return true;
+            }
+            Node leaf = Node.loadNode(tree, nextLeaf);
+            LeafScanRes res = leaf.leafScan(leftKey, rightKey, buf);
+            leaf.release();
+            count = res.count;
+            pos = 0;
+            nextLeaf = res.siblingUid;
+        }
+        uid = buf[pos ++];
+        return true;
+    }
+
+    // 当前的uid
+    public long uid() {
+        return uid;
+    }
+}
@@ -1,8 +1,6 @@
 package xiaolaa.main.mintdb.backend.im;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.function.Supplier;
 
 import xiaolaa.main.mintdb.backend.common.SubArray;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
@@ -13,15 +11,35 @@ import xiaolaa.main.mintdb.backend.utils.Parser;
  * Node结构如下：
  * [LeafFlag][KeyNumber][SiblingUid]
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * 节点最多容纳balance*2+2项，达到balance*2项时分裂为两个各有balance项的节点，
+ * balance由所属的B+树决定，同一棵树中所有节点大小相同
+ * key是定长的8字节long，string字段的key是Parser.str2Key生成的前缀加哈希，原值由上层复核；
+ * 节点不支持变长key，叶子内也没有前缀压缩
+ * LeafFlag的第0位表示叶子节点，第1位表示节点已被合并到左侧节点或已不再是根，不在树中，
+ * 它的内容保持合并时的样子，仍持有它的uid的读者可以读到一致的结果；
+ * 写者遇到这样的节点不修改它，由B+树从根重新定位
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
+    private static final byte LEAF_FLAG = 1;
+    private static final byte REMOVED_FLAG = 2;
     static final int NO_KEYS_OFFSET = IS_LEAF_OFFSET+1;
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2;
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
-    static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    // 默认创建的索引和未记录balance的旧索引使用的值，节点约1KB
+    static final int DEFAULT_BALANCE_NUMBER = 32;
+    // 节点恰好占满一页时的balance，这样的节点独占一页，是balance的上限
+    static final int PAGE_BALANCE_NUMBER = ((DataItem.MAX_DATA_SIZE - NODE_HEADER_SIZE) / (2*8) - 2) / 2;
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2*8)*capacity(balance);
+    }
+
+    // 节点最多容纳的项数
+    static int capacity(int balance) {
+        return balance*2+2;
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -30,53 +48,61 @@ public class Node {
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
+            raw.raw[raw.start + IS_LEAF_OFFSET] = LEAF_FLAG;
         } else {
             raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
         }
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & LEAF_FLAG) != 0;
+    }
+
+    static void setRawRemoved(SubArray raw) {
+        raw.raw[raw.start + IS_LEAF_OFFSET] |= REMOVED_FLAG;
+    }
+
+    static boolean getRawIfRemoved(SubArray raw) {
+        return (raw.raw[raw.start + IS_LEAF_OFFSET] & REMOVED_FLAG) != 0;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
         // 设置两个字节长度的键数量
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        Parser.putShort(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (int)Parser.parseShort(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
         // 设置兄弟节点的uid
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        Parser.putLong(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return Parser.parseLong(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         // 跳过开头的leafFlag、keynumber、siblingUID
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        Parser.putLong(raw.raw, offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return Parser.parseLong(raw.raw, offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -85,24 +111,60 @@ public class Node {
     }
 
     /**
-     * 该方法用于将给定SubArray中的第k个元素之后的所有元素向后移动一个位置。
-     * 重要的是，此方法会修改原始数组的内容。
+     * 将第kth个及之后的元素向后移动一个位置，为新元素腾出第kth个位置
      *
-     * @param raw 表示要操作的原始子数组。它包含实际要操作的字节数据。
-     * @param kth 表示要从哪个位置开始移动元素。kth元素本身不被移动，而是从kth之后的元素开始移动。
+     * @param raw 要操作的节点
+     * @param kth 腾出的位置
+     * @param noKeys 节点当前的元素个数，只移动已有的元素
      */
-    static void shiftRawKth(SubArray raw, int kth) {
-        // 计算需要移动数据的起始位置和结束位置
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        // 从结束位置向前遍历，将每个位置的元素向后移动一个位置
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+    static void shiftRawKth(SubArray raw, int kth, int noKeys) {
+        if(kth >= noKeys) {
+            return;
         }
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        System.arraycopy(raw.raw, begin, raw.raw, begin+(8*2), (noKeys-kth)*(8*2));
     }
 
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    /**
+     * 二分查找第一个不小于key的元素的位置，所有元素都小于key时返回noKeys
+     * 节点中的key有序且可能重复，返回的是相等元素中最左的一个
+     */
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int low = 0, high = noKeys;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(getRawKthKey(raw, mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // 二分查找第一个大于key的元素的位置，所有元素都不大于key时返回noKeys
+    static int upperBound(SubArray raw, int noKeys, long key) {
+        int low = 0, high = noKeys;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(getRawKthKey(raw, mid) <= key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // 删除第kth个元素，其后的元素依次前移
+    static void removeRawKth(SubArray raw, int kth, int noKeys) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, (noKeys-kth-1)*(8*2));
+    }
+
+    static byte[] newRootRaw(long left, long right, long key, int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -115,8 +177,27 @@ public class Node {
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    /**
+     * 用sons和keys中从from开始的count项构造一个节点，用于批量建树
+     */
+    static byte[] newRawFromEntries(boolean isLeaf, long sibling, long[] sons, long[] keys, int from, int count, int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
+
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, count);
+        setRawSibling(raw, sibling);
+        for(int i = 0; i < count; i ++) {
+            setRawKthSon(raw, sons[from+i], i);
+            setRawKthKey(raw, keys[from+i], i);
+        }
+
+        return raw.raw;
+    }
+
+    static byte[] newNilRootRaw(int balance)  {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -140,15 +221,37 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
+    /**
+     * 读操作先不加锁地读取节点，读完后检查期间节点是否被修改过，被修改过时再加读锁重读
+     * 读者因此不会被写者阻塞，也不会阻塞写者
+     */
+    private <T> T read(Supplier<T> reader) {
+        long stamp = dataItem.tryOptimisticRead();
+        if(stamp != 0) {
+            T res = reader.get();
+            if(dataItem.validate(stamp)) {
+                return res;
+            }
+        }
         dataItem.rLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // 不加锁读取时键数量可能是被修改到一半的值，限制在节点的容量内，防止越界
+    private int noKeys() {
+        int noKeys = getRawNoKeys(raw);
+        int capacity = (raw.end - raw.start - NODE_HEADER_SIZE) / (8*2);
+        return Math.max(0, Math.min(noKeys, capacity));
+    }
+
+    public boolean isLeaf() {
+        return read(() -> getRawIfLeaf(raw));
+    }
+
     class SearchNextRes {
         long uid;
         long siblingUid;
@@ -161,103 +264,235 @@ public class Node {
      * @return SearchNextRes 返回搜索结果，包含找到的键的uid和其后续兄弟节点的uid。
      */
     public SearchNextRes searchNext(long key) {
-        dataItem.rLock(); // 获取读锁以确保线程安全
-        try {
+        return searchNext(key, false);
+    }
+
+    /**
+     * 与searchNext相同，但进入可能含有key的最左侧子节点
+     * 子节点中的key不大于其分隔key，与key相等的项可能留在分隔key等于key的子节点中
+     */
+    public SearchNextRes searchFirst(long key) {
+        return searchNext(key, true);
+    }
+
+    private SearchNextRes searchNext(long key, boolean first) {
+        return read(() -> {
             SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw); // 获取当前raw中键的数量
-            // 遍历所有键来查找第一个大于给定key的键
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i); // 获取第i个键的值
-                if(key < ik) {
-                    // 如果找到第一个大于key的键，则返回其后续兄弟节点的uid和当前节点的uid
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0; // 默认后续兄弟节点uid为0
-                    return res;
-                }
+            int noKeys = noKeys(); // 获取当前raw中键的数量
+            // 二分查找第一个大于（first时为不小于）给定key的键
+            int kth = first ? lowerBound(raw, noKeys, key) : upperBound(raw, noKeys, key);
+            if(kth < noKeys) {
+                // 如果找到第一个大于key的键，则返回其对应的子节点uid
+                res.uid = getRawKthSon(raw, kth);
+                res.siblingUid = 0; // 默认后续兄弟节点uid为0
+                return res;
             }
             // 如果所有键都比key小，则返回后续兄弟节点的uid，当前节点没有后续兄弟节点
             res.uid = 0;
             res.siblingUid = getRawSibling(raw);
             return res;
+        });
+    }
 
-        } finally {
-            dataItem.rUnLock(); // 释放读锁
-        }
+
+    class LeafScanRes {
+        int count;
+        long siblingUid;
     }
 
+    /**
+     * 将叶子节点中key在[leftKey, rightKey]内的uid依次写入buf
+     * 所有项都不大于rightKey时返回兄弟节点，范围可能延续到兄弟节点中
+     * @param buf 长度不小于节点的容量
+     */
+    public LeafScanRes leafScan(long leftKey, long rightKey, long[] buf) {
+        return read(() -> {
+            int noKeys = noKeys();
+            // 找到左侧起点
+            int kth = lowerBound(raw, noKeys, leftKey);
+            int count = 0;
+            while(kth < noKeys && getRawKthKey(raw, kth) <= rightKey) {
+                buf[count ++] = getRawKthSon(raw, kth);
+                kth ++;
+            }
+            LeafScanRes res = new LeafScanRes();
+            res.count = count;
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
+        });
+    }
 
-    class LeafSearchRangeRes {
-        List<Long> uids;
+    class LeafDeleteRes {
+        boolean deleted;
+        // 节点已被合并，不在树中
+        boolean removed;
         long siblingUid;
+        // 删除后节点中剩余的项数
+        int noKeys;
     }
 
     /**
-     * 在叶子节点中范围查找
-     * @param leftKey
-     * @param rightKey
-     * @return
+     * 在叶子节点中删除(key, uid)
+     * 没有找到且节点中所有key都不大于key时，返回兄弟节点继续查找
      */
-    public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
         try {
+            if(getRawIfRemoved(raw)) {
+                res.removed = true;
+                return res;
+            }
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
+            int kth = lowerBound(raw, noKeys, key);
+            while(kth < noKeys && getRawKthKey(raw, kth) == key) {
+                if(getRawKthSon(raw, kth) == uid) {
+                    removeRawKth(raw, kth, noKeys);
+                    setRawNoKeys(raw, noKeys-1);
+                    res.deleted = true;
+                    res.noKeys = noKeys-1;
+                    return res;
                 }
                 kth ++;
             }
-            // 找到左侧起点
-            List<Long> uids = new ArrayList<>();
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
-                    kth ++;
-                } else {
-                    break;
-                }
-            }
-            long siblingUid = 0;
             if(kth == noKeys) {
-                siblingUid = getRawSibling(raw);
+                res.siblingUid = getRawSibling(raw);
             }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
-            res.siblingUid = siblingUid;
             return res;
         } finally {
-            dataItem.rUnLock();
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /*
+     * 以下方法用于寻找要合并的节点，不加锁的读取只作为提示，合并时在节点的锁下重新检查
+     */
+
+    public int getNoKeys() {
+        return read(() -> getRawNoKeys(raw));
+    }
+
+    public long getSibling() {
+        return read(() -> getRawSibling(raw));
+    }
+
+    public long getSon(int kth) {
+        return read(() -> getRawKthSon(raw, kth));
+    }
+
+    public boolean isRemoved() {
+        return read(() -> getRawIfRemoved(raw));
+    }
+
+    // 子节点son在本节点中的位置，不存在时返回-1
+    public int indexOfSon(long son) {
+        return read(() -> {
+            int noKeys = noKeys();
+            for(int i = 0; i < noKeys; i ++) {
+                if(getRawKthSon(raw, i) == son) {
+                    return i;
+                }
+            }
+            return -1;
+        });
+    }
+
+    /**
+     * 将parent中紧跟在left之后的子节点right并入left，调用者持有B+树的合并锁，合并之间互斥
+     * 依次对right、left、parent加锁后检查：三者都在树中，right是left的兄弟，二者在parent中相邻，
+     * 合并后不超过maxKeys项；不满足时不合并，返回false。插入和删除同一时刻只持有一个节点的锁，不会死锁
+     * 之后依次记录三个节点的修改：parent删除right的项，left追加right的项并接管兄弟指针，right标记为已删除。
+     * parent修改之后宕机时，right仍可以通过left的兄弟指针到达，与分裂到一半的状态相同；
+     * left修改之后宕机时，right已不可达，它的项都在left中
+     * right的锁持有到标记完成，合并之后没有写者能修改right
+     */
+    static boolean merge(Node parent, Node left, Node right, int maxKeys) {
+        right.dataItem.before();
+        left.dataItem.before();
+        parent.dataItem.before();
+        int kth = -1;
+        try {
+            if(!getRawIfRemoved(parent.raw) && !getRawIfRemoved(left.raw) && !getRawIfRemoved(right.raw)
+                && getRawSibling(left.raw) == right.uid
+                && getRawNoKeys(left.raw) + getRawNoKeys(right.raw) <= maxKeys) {
+                int parentKeys = getRawNoKeys(parent.raw);
+                for(int i = 0; i+1 < parentKeys; i ++) {
+                    if(getRawKthSon(parent.raw, i) == left.uid && getRawKthSon(parent.raw, i+1) == right.uid) {
+                        kth = i;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if(kth < 0) {
+                parent.dataItem.unBefore();
+                left.dataItem.unBefore();
+                right.dataItem.unBefore();
+            }
+        }
+        if(kth < 0) {
+            return false;
         }
+
+        // 第kth项的子节点接管第kth+1项的范围
+        int parentKeys = getRawNoKeys(parent.raw);
+        setRawKthKey(parent.raw, getRawKthKey(parent.raw, kth+1), kth);
+        removeRawKth(parent.raw, kth+1, parentKeys);
+        setRawNoKeys(parent.raw, parentKeys-1);
+        parent.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+        int noKeys = getRawNoKeys(left.raw);
+        int rightKeys = getRawNoKeys(right.raw);
+        int from = right.raw.start+NODE_HEADER_SIZE;
+        int to = left.raw.start+NODE_HEADER_SIZE+noKeys*(8*2);
+        System.arraycopy(right.raw.raw, from, left.raw.raw, to, rightKeys*(8*2));
+        setRawNoKeys(left.raw, noKeys+rightKeys);
+        setRawSibling(left.raw, getRawSibling(right.raw));
+        left.dataItem.after(TransactionManagerImpl.SUPER_XID);
+
+        setRawRemoved(right.raw);
+        right.dataItem.after(TransactionManagerImpl.SUPER_XID);
+        return true;
     }
 
     class InsertAndSplitRes {
         long siblingUid, newSon, newKey;
+        // 节点已被合并或已不再是根，不在树中
+        boolean removed;
     }
 
     /**
      * 插入数据，如果插入成功则返回true，否则返回false。
      * @param uid
      * @param key
+     * @param leftSon 内部节点中，分裂出uid的子节点，新的子节点紧跟在它之后；叶子节点中不使用
      * @return
      * @throws Exception
      */
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    public InsertAndSplitRes insertAndSplit(long uid, long key, long leftSon) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            if(getRawIfRemoved(raw)) {
+                res.removed = true;
+                return res;
+            }
+            success = insert(uid, key, leftSon);
             if(!success) {
                 // 插入失败，去邻居节点继续找
                 res.siblingUid = getRawSibling(raw);
                 return res;
             }
-            // 插入之后判断是否需要拆分，kth大于BALANCE_NUMBER*2，则需要拆分
+            // 插入之后判断是否需要拆分，键数量达到balance*2，则需要拆分
             if(needSplit()) {
                 // node的key数量太多，页分裂
                 try {
@@ -281,15 +516,13 @@ public class Node {
         }
     }
 
-    private boolean insert(long uid, long key) {
+    private boolean insert(long uid, long key, long leftSon) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
+        int kth = lowerBound(raw, noKeys, key);
+        if(!getRawIfLeaf(raw)) {
+            // 分隔key可能重复，在相等的分隔key中找到分裂的子节点
+            while(kth < noKeys && getRawKthSon(raw, kth) != leftSon && getRawKthKey(raw, kth) == key) {
                 kth ++;
-            } else {
-                break;
             }
         }
         // 如果插入的键值大于所有键值，且当前节点有后续兄弟节点，则返回，在兄弟节点中继续插入
@@ -298,14 +531,14 @@ public class Node {
         if(getRawIfLeaf(raw)) {
             // 如果为叶子节点
             // 将原来在这个位置的元素往后挪一个位置
-            shiftRawKth(raw, kth);
+            shiftRawKth(raw, kth, noKeys);
             setRawKthKey(raw, key, kth);
             setRawKthSon(raw, uid, kth);
             setRawNoKeys(raw, noKeys+1);
         } else {
             long kk = getRawKthKey(raw, kth);
             setRawKthKey(raw, key, kth);
-            shiftRawKth(raw, kth+1);
+            shiftRawKth(raw, kth+1, noKeys);
             setRawKthKey(raw, kk, kth+1);
             setRawKthSon(raw, uid, kth+1);
             setRawNoKeys(raw, noKeys+1);
@@ -314,7 +547,7 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return tree.balance*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -331,21 +564,23 @@ public class Node {
      */
     private SplitRes split() throws Exception {
         // 创建一个新的子数组，用于存放即将分裂出的节点数据
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = tree.balance;
+        int size = nodeSize(balance);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
 
         // 设置新节点的是否为叶子节点属性，以及初始键数量和兄弟节点ID
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw)); // 原来就是叶子节点，那么现在也就是叶子节点
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw)); // 继承源节点的兄弟节点
 
-        // 从原始节点复制数据到新节点，从第BALANCE_NUMBER个键开始复制
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        // 从原始节点复制数据到新节点，从第balance个键开始复制
+        copyRawFromKth(raw, nodeRaw, balance);
 
         // 向数据树中插入新节点，并获取新节点的UID
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
 
         // 更新原始节点的键数量和兄弟节点ID
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         // 准备分裂结果
@@ -1,5 +1,6 @@
 package xiaolaa.main.mintdb.backend.parser;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -72,12 +73,12 @@ public class Parser {
             String next = tokenizer.peek();
             if(!"".equals(next)) {
                 byte[] errStat = tokenizer.errStat();
-                statErr = new RuntimeException("Invalid statement: " + new String(errStat));
+                statErr = new RuntimeException("Invalid statement: " + new String(errStat, StandardCharsets.UTF_8));
             }
         } catch(Exception e) {
             e.printStackTrace();
             byte[] errStat = tokenizer.errStat();
-            statErr = new RuntimeException("Invalid statement: " + new String(errStat));
+            statErr = new RuntimeException("Invalid statement: " + new String(errStat, StandardCharsets.UTF_8));
         }
         if(statErr != null) {
             throw statErr;
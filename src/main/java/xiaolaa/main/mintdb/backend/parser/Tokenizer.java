@@ -1,5 +1,8 @@
 package xiaolaa.main.mintdb.backend.parser;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
 import xiaolaa.main.mintdb.common.Error;
 
 /**
@@ -139,7 +142,8 @@ public class Tokenizer {
         // 拿出一个引号
         byte quote = peekByte();
         popByte();
-        StringBuilder sb = new StringBuilder();
+        // 引号内可能有多字节字符，按字节收集后统一以UTF-8解码
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         while(true) {
             Byte b = peekByte();
             if(b == null) {
@@ -151,10 +155,10 @@ public class Tokenizer {
                 popByte();
                 break;
             }
-            sb.append(new String(new byte[]{b}));
+            bytes.write(b);
             popByte();
         }
-        return sb.toString();
+        return bytes.toString(StandardCharsets.UTF_8);
     }
 
     /**
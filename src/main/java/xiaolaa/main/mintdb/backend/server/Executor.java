@@ -1,5 +1,7 @@
 package xiaolaa.main.mintdb.backend.server;
 
+import java.nio.charset.StandardCharsets;
+
 import xiaolaa.main.mintdb.backend.parser.Parser;
 import xiaolaa.main.mintdb.backend.parser.statement.Abort;
 import xiaolaa.main.mintdb.backend.parser.statement.Begin;
@@ -40,7 +42,7 @@ public class Executor {
      */
     public byte[] execute(byte[] sql) throws Exception {
         // 打印执行的SQL命令
-        System.out.println("Execute: " + new String(sql));
+        System.out.println("Execute: " + new String(sql, StandardCharsets.UTF_8));
         Object stat = Parser.Parse(sql); // 解析SQL命令
 
         // 根据解析后的命令类型执行相应的操作
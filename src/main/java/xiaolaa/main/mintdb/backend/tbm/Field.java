@@ -1,11 +1,12 @@
 package xiaolaa.main.mintdb.backend.tbm;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
-import java.util.List;
 
 import com.google.common.primitives.Bytes;
 
 import xiaolaa.main.mintdb.backend.im.BPlusTree;
+import xiaolaa.main.mintdb.backend.im.Cursor;
 import xiaolaa.main.mintdb.backend.parser.statement.SingleExpression;
 import xiaolaa.main.mintdb.backend.tm.TransactionManagerImpl;
 import xiaolaa.main.mintdb.backend.utils.Panic;
@@ -16,10 +17,16 @@ import xiaolaa.main.mintdb.common.Error;
 /**
  * field 表示字段信息
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][IndexUid][KeyFormat]
  * 如果field无索引，IndexUid为0
+ * KeyFormat为KEY_PREFIX_HASH时，string字段的索引key由Parser.str2Key生成，是定长的前缀加哈希：
+ * 前缀保持顺序，可以用于范围查询，哈希区分前缀相同的字符串；
+ * 旧版本创建的字段没有KeyFormat，string字段的索引key是Parser.str2Uid的哈希值
+ * 两种key都可能有多个字符串对应同一个key，由索引查出的行要用字段的原值复核条件
  */
 public class Field {
+    private static final byte KEY_PREFIX_HASH = 1;
+
     long uid;
     // 字段所属的表
     private Table tb;
@@ -28,6 +35,8 @@ public class Field {
     private long index;
     // B+树索引
     private BPlusTree bt;
+    // string字段的索引key是否为前缀加哈希，否则是旧版本的哈希值
+    private boolean prefixHashKey;
 
     public static Field loadField(Table tb, long uid) {
         byte[] raw = null;
@@ -58,11 +67,13 @@ public class Field {
         ParseStringRes res = Parser.parseString(raw);
         fieldName = res.str;
         position += res.next;
-        res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
+        res = Parser.parseString(raw, position);
         fieldType = res.str;
         position += res.next;
         // 索引uid
-        this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        this.index = Parser.parseLong(raw, position);
+        position += 8;
+        this.prefixHashKey = position < raw.length && raw[position] == KEY_PREFIX_HASH;
         if(index != 0) {
             try {
                 // 加载字段的B+树索引
@@ -77,6 +88,7 @@ public class Field {
     public static Field createField(Table tb, long xid, String fieldName, String fieldType, boolean indexed) throws Exception {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
+        f.prefixHashKey = true;
         // 如果需要索引，则创建B+树索引
         if(indexed) {
             long index = BPlusTree.create(((TableManagerImpl)tb.tbm).dm);
@@ -92,7 +104,8 @@ public class Field {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        byte[] formatRaw = new byte[] { prefixHashKey ? KEY_PREFIX_HASH : 0 };
+        this.uid = ((TableManagerImpl)tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw, formatRaw));
     }
 
     private static void typeCheck(String fieldType) throws Exception {
@@ -105,6 +118,11 @@ public class Field {
         return index != 0;
     }
 
+    // 不同的值可能对应同一个索引key，索引查出的行需要用satisfy复核
+    public boolean lossyKey() {
+        return "string".equals(fieldType);
+    }
+
     /**
      * 插入B+索引树
      * @param key
@@ -116,8 +134,15 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
-    public List<Long> search(long left, long right) throws Exception {
-        return bt.searchRange(left, right);
+    /**
+     * 删除B+索引树中的索引项
+     */
+    public boolean remove(Object key, long uid) throws Exception {
+        return bt.delete(value2Uid(key), uid);
+    }
+
+    public Cursor cursor(long left, long right) throws Exception {
+        return bt.cursor(left, right);
     }
 
     public Object string2Value(String str) {
@@ -136,7 +161,7 @@ public class Field {
         long uid = 0;
         switch(fieldType) {
             case "string":
-                uid = Parser.str2Uid((String)key);
+                uid = prefixHashKey ? Parser.str2Key((String)key) : Parser.str2Uid((String)key);
                 break;
             case "int32":
                 int uint = (int)key;
@@ -148,7 +173,11 @@ public class Field {
         return uid;
     }
 
-    public byte[] value2Raw(Object v) {
+    /**
+     * 将值转换为行中的二进制
+     * 超过Toast.THRESHOLD字节的字符串以xid写入行外，行中记为[-Length][ChunkUid]
+     */
+    public byte[] value2Raw(long xid, Object v) throws Exception {
         byte[] raw = null;
         switch(fieldType) {
             case "int32":
@@ -158,30 +187,55 @@ public class Field {
                 raw = Parser.long2Byte((long)v);
                 break;
             case "string":
-                raw = Parser.string2Byte((String)v);
+                byte[] bytes = ((String)v).getBytes(StandardCharsets.UTF_8);
+                if(bytes.length > Toast.THRESHOLD) {
+                    long chunkUid = Toast.store(((TableManagerImpl)tb.tbm).dm, xid, bytes);
+                    raw = new byte[12];
+                    Parser.putInt(raw, 0, -bytes.length);
+                    Parser.putLong(raw, 4, chunkUid);
+                } else {
+                    raw = Parser.string2Byte((String)v);
+                }
                 break;
         }
         return raw;
     }
 
+    /**
+     * 读出行外存储的值，其他值原样返回
+     */
+    public Object loadValue(Object v) throws Exception {
+        if(v instanceof Toast.Pointer) {
+            return new String(Toast.load(((TableManagerImpl)tb.tbm).dm, (Toast.Pointer)v), StandardCharsets.UTF_8);
+        }
+        return v;
+    }
+
     class ParseValueRes {
         Object v;
         int shift;
     }
 
-    public ParseValueRes parserValue(byte[] raw) {
+    public ParseValueRes parserValue(byte[] raw, int offset) {
         ParseValueRes res = new ParseValueRes();
         switch(fieldType) {
             case "int32":
-                res.v = Parser.parseInt(Arrays.copyOf(raw, 4));
+                res.v = Parser.parseInt(raw, offset);
                 res.shift = 4;
                 break;
             case "int64":
-                res.v = Parser.parseLong(Arrays.copyOf(raw, 8));
+                res.v = Parser.parseLong(raw, offset);
                 res.shift = 8;
                 break;
             case "string":
-                ParseStringRes r = Parser.parseString(raw);
+                int length = Parser.parseInt(raw, offset);
+                if(length < 0) {
+                    // 行外存储，只记下引用，输出时才读取
+                    res.v = new Toast.Pointer(Parser.parseLong(raw, offset+4), -length);
+                    res.shift = 12;
+                    break;
+                }
+                ParseStringRes r = Parser.parseString(raw, offset);
                 res.v = r.str;
                 res.shift = r.next;
                 break;
@@ -189,7 +243,8 @@ public class Field {
         return res;
     }
 
-    public String printValue(Object v) {
+    public String printValue(Object v) throws Exception {
+        v = loadValue(v);
         String str = null;
         switch(fieldType) {
             case "int32":
@@ -225,13 +280,35 @@ public class Field {
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
         Object v = null;
         FieldCalRes res = new FieldCalRes();
+        if("string".equals(fieldType) && prefixHashKey) {
+            // 前缀相同的字符串之间没有顺序，范围的边界要包含整个前缀
+            String str = exp.value;
+            switch(exp.compareOp) {
+                case "<":
+                    res.left = Long.MIN_VALUE;
+                    res.right = Parser.str2KeyBound(str, true);
+                    break;
+                case "=":
+                    res.left = Parser.str2Key(str);
+                    res.right = res.left;
+                    break;
+                case ">":
+                    res.left = Parser.str2KeyBound(str, false);
+                    res.right = Long.MAX_VALUE;
+                    break;
+            }
+            return res;
+        }
         switch(exp.compareOp) {
             case "<":
-                res.left = 0;
+                res.left = Long.MIN_VALUE;
                 // 解析字段的字段类型
                 v = string2Value(exp.value);
                 res.right = value2Uid(v);
-                if(res.right > 0) {
+                if(res.right == Long.MIN_VALUE) {
+                    // 没有更小的key，左边界大于右边界，范围为空
+                    res.left = Long.MAX_VALUE;
+                } else {
                     res.right --;
                 }
                 break;
@@ -243,9 +320,44 @@ public class Field {
             case ">":
                 res.right = Long.MAX_VALUE;
                 v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = value2Uid(v);
+                if(res.left == Long.MAX_VALUE) {
+                    res.right = Long.MIN_VALUE;
+                } else {
+                    res.left ++;
+                }
                 break;
         }
         return res;
     }
+
+    /**
+     * 值v是否满足条件exp，字符串按UTF-8字节的无符号字典序比较，与索引key的顺序一致
+     */
+    public boolean satisfy(SingleExpression exp, Object v) throws Exception {
+        v = loadValue(v);
+        Object target = string2Value(exp.value);
+        int cmp = 0;
+        switch(fieldType) {
+            case "int32":
+                cmp = Integer.compare((int)v, (int)target);
+                break;
+            case "int64":
+                cmp = Long.compare((long)v, (long)target);
+                break;
+            case "string":
+                cmp = Arrays.compareUnsigned(((String)v).getBytes(StandardCharsets.UTF_8),
+                    ((String)target).getBytes(StandardCharsets.UTF_8));
+                break;
+        }
+        switch(exp.compareOp) {
+            case "<":
+                return cmp < 0;
+            case "=":
+                return cmp == 0;
+            case ">":
+                return cmp > 0;
+        }
+        return false;
+    }
 }
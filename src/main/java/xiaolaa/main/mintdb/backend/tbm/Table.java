@@ -8,6 +8,7 @@ import java.util.Map;
 
 import com.google.common.primitives.Bytes;
 
+import xiaolaa.main.mintdb.backend.im.Cursor;
 import xiaolaa.main.mintdb.backend.parser.statement.Create;
 import xiaolaa.main.mintdb.backend.parser.statement.Delete;
 import xiaolaa.main.mintdb.backend.parser.statement.Insert;
@@ -19,6 +20,7 @@ import xiaolaa.main.mintdb.backend.tm.TransactionManagerImpl;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.backend.utils.ParseStringRes;
 import xiaolaa.main.mintdb.backend.utils.Parser;
+import xiaolaa.main.mintdb.backend.vm.VersionManager;
 import xiaolaa.main.mintdb.common.Error;
 
 /**
@@ -88,11 +90,11 @@ public class Table {
         name = res.str;
         position += res.next;
         // 获取下一张表的uid
-        nextUid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+        nextUid = Parser.parseLong(raw, position);
         position += 8;
 
         while(position < raw.length) {
-            long uid = Parser.parseLong(Arrays.copyOfRange(raw, position, position+8));
+            long uid = Parser.parseLong(raw, position);
             position += 8;
             // 顺序加载每个field，字段
             fields.add(Field.loadField(this, uid));
@@ -122,16 +124,66 @@ public class Table {
      * @throws Exception
      */
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        Cursor cursor = parseWhere(delete.where);
+        boolean recheck = needRecheck(delete.where);
         int count = 0;
-        for (Long uid : uids) {
-            if(((TableManagerImpl)tbm).vm.delete(xid, uid)) {
+        while(cursor.next()) {
+            if(recheck) {
+                byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, cursor.uid());
+                if(raw == null || !satisfy(delete.where, parseEntry(raw))) continue;
+            }
+            if(((TableManagerImpl)tbm).vm.delete(xid, cursor.uid())) {
                 count ++;
             }
         }
         return count;
     }
 
+    /**
+     * 回收本表中所有事务都不再可见的旧版本，返回回收的版本数
+     * 通过第一个索引字段遍历全部版本，删除死版本的索引项和行外数据，再将其标记为无效
+     * @param horizon 清理界限，见VersionManager.vacuumHorizon
+     */
+    int vacuum(Vacuum v, long horizon, long throttleMillis) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        Field fd = null;
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                fd = field;
+                break;
+            }
+        }
+        if(fd == null) {
+            return 0;
+        }
+        int count = 0;
+        // 游标一次取出一个叶子的内容，删除已取出的索引项不影响遍历
+        Cursor cursor = fd.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while(cursor.next()) {
+            long uid = cursor.uid();
+            v.throttle(throttleMillis);
+            byte[] raw = vm.readDead(horizon, uid);
+            if(raw == null) continue;
+
+            Map<String, Object> entry = parseEntry(raw);
+            for (Field field : fields) {
+                Object value = entry.get(field.fieldName);
+                if(field.isIndexed()) {
+                    field.remove(field.loadValue(value), uid);
+                }
+                if(value instanceof Toast.Pointer) {
+                    for (long chunk : Toast.purge(((TableManagerImpl)tbm).dm, (Toast.Pointer)value)) {
+                        v.addPage(chunk);
+                    }
+                }
+            }
+            vm.purge(uid);
+            v.addPage(uid);
+            count ++;
+        }
+        return count;
+    }
+
     /**
      * 更新满足特定条件的记录的指定字段值，并返回更新的记录数量。
      *
@@ -142,7 +194,8 @@ public class Table {
      */
     public int update(long xid, Update update) throws Exception {
         // 解析更新条件中的筛选标识符
-        List<Long> uids = parseWhere(update.where);
+        // 更新会向同一索引插入新版本，先取出全部uid，避免游标读到本次插入的新版本再次更新
+        long[] uids = collect(parseWhere(update.where));
         Field fd = null;
         // 查找要更新的字段
         for (Field f : fields) {
@@ -159,20 +212,25 @@ public class Table {
         Object value = fd.string2Value(update.value);
         int count = 0; // 用于记录更新的记录数量
         // 遍历所有满足更新条件的记录，包括记录历史数据
-        for (Long uid : uids) {
+        for (long uid : uids) {
             // 读取记录的原始数据，假如mvcc不可见，继续寻找下一条历史记录
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue; // 如果记录不存在，则跳过当前循环
 
+            // 解析原始数据，以获取当前记录的所有字段值，行外的值读出后随新版本重新写入
+            Map<String, Object> entry = parseEntry(raw);
+            if(!satisfy(update.where, entry)) continue;
+
             // 删除原始记录
             ((TableManagerImpl)tbm).vm.delete(xid, uid);
 
-            // 解析原始数据，以获取当前记录的所有字段值
-            Map<String, Object> entry = parseEntry(raw);
+            for (Field field : fields) {
+                entry.put(field.fieldName, field.loadValue(entry.get(field.fieldName)));
+            }
             // 更新指定字段的值
             entry.put(fd.fieldName, value);
             // 重新构建更新后的记录数据
-            raw = entry2Raw(entry);
+            raw = entry2Raw(xid, entry);
             // 在数据库中插入更新后的记录，并获取新记录的UUID
             long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
 
@@ -198,25 +256,49 @@ public class Table {
      * @throws Exception
      */
     public String read(long xid, Select read) throws Exception {
+        List<Field> projected = project(read.fields);
         // 解析where
-        List<Long> uids = parseWhere(read.where);
+        Cursor cursor = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
-        // uids为行记录集合
+        // 游标逐个给出行记录的uid
         // 所有版本的记录都会扫描出来
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
+        while(cursor.next()) {
+            byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, cursor.uid());
             if(raw == null) continue;  // 说明当前事务无法访问该版本的记录 MVCC
             // 解析出行记录
             Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+            if(!satisfy(read.where, entry)) continue;
+            sb.append(printEntry(projected, entry)).append("\n");
         }
         return sb.toString();
     }
 
+    // 查询要输出的字段，只有这些字段的行外值会被读取
+    private List<Field> project(String[] names) throws Exception {
+        if(names == null || names.length == 0 || "*".equals(names[0])) {
+            return fields;
+        }
+        List<Field> projected = new ArrayList<>();
+        for (String name : names) {
+            Field fd = null;
+            for (Field field : fields) {
+                if(field.fieldName.equals(name)) {
+                    fd = field;
+                    break;
+                }
+            }
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            projected.add(fd);
+        }
+        return projected;
+    }
+
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
         // 表一行所有字段连接后的记录二进制
-        byte[] raw = entry2Raw(entry);
+        byte[] raw = entry2Raw(xid, entry);
         long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
         for (Field field : fields) {
             // 如果字段是索引字段，则插入索引
@@ -248,7 +330,19 @@ public class Table {
      * @return 返回匹配条件的UID列表。
      * @throws Exception 如果字段未被索引或查询中指定的字段不存在，则抛出异常。
      */
-    private List<Long> parseWhere(Where where) throws Exception {
+    private static long[] collect(Cursor cursor) throws Exception {
+        long[] uids = new long[16];
+        int n = 0;
+        while(cursor.next()) {
+            if(n == uids.length) {
+                uids = Arrays.copyOf(uids, n*2);
+            }
+            uids[n ++] = cursor.uid();
+        }
+        return Arrays.copyOf(uids, n);
+    }
+
+    private Cursor parseWhere(Where where) throws Exception {
         long l0=0, r0=0, l1=0, r1=0;
         boolean single = false;
         Field fd = null;
@@ -260,24 +354,11 @@ public class Table {
                     break;
                 }
             }
-            l0 = 0;
+            l0 = Long.MIN_VALUE;
             r0 = Long.MAX_VALUE;
             single = true;
         } else {
-            // 根据where参数中的字段名查找对应的字段
-            for (Field field : fields) {
-                if(field.fieldName.equals(where.singleExp1.field)) {
-                    if(!field.isIndexed()) {
-                        throw Error.FieldNotIndexedException;
-                    }
-                    fd = field;
-                    break;
-                }
-            }
-            // 如果where参数中的字段不存在，则抛出异常
-            if(fd == null) {
-                throw Error.FieldNotFoundException;
-            }
+            fd = whereField(where);
             // 计算查询条件的边界值
             CalWhereRes res = calWhere(fd, where);
             // 第一个查询条件
@@ -286,17 +367,55 @@ public class Table {
             l1 = res.l1; r1 = res.r1;
             single = res.single;
         }
-        // 根据计算得到的边界值查询匹配的UID列表
-        List<Long> uids = fd.search(l0, r0);
-        // 如果不是单个查询条件，则合并第二个查询范围的结果到UID列表中
+        // 根据计算得到的边界值打开游标
+        Cursor cursor = fd.cursor(l0, r0);
+        // 如果不是单个查询条件，则在第一个范围之后继续读取第二个查询范围
         if(!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp); // 合并查询结果
+            cursor = Cursor.concat(cursor, fd.cursor(l1, r1));
         }
-        return uids;
+        return cursor;
     }
 
 
+    // 根据where参数中的字段名查找对应的字段
+    private Field whereField(Where where) throws Exception {
+        for (Field field : fields) {
+            if(field.fieldName.equals(where.singleExp1.field)) {
+                if(!field.isIndexed()) {
+                    throw Error.FieldNotIndexedException;
+                }
+                return field;
+            }
+        }
+        // 如果where参数中的字段不存在，则抛出异常
+        throw Error.FieldNotFoundException;
+    }
+
+    // 索引key不能区分条件字段的所有值时，游标给出的行要用原值复核条件
+    private boolean needRecheck(Where where) throws Exception {
+        return where != null && whereField(where).lossyKey();
+    }
+
+    /**
+     * 行entry是否满足where，条件字段的索引key能精确区分值时不需要复核
+     */
+    private boolean satisfy(Where where, Map<String, Object> entry) throws Exception {
+        if(!needRecheck(where)) {
+            return true;
+        }
+        Field fd = whereField(where);
+        Object v = entry.get(fd.fieldName);
+        boolean s1 = fd.satisfy(where.singleExp1, v);
+        switch(where.logicOp) {
+            case "or":
+                return s1 || fd.satisfy(where.singleExp2, v);
+            case "and":
+                return s1 && fd.satisfy(where.singleExp2, v);
+            default:
+                return s1;
+        }
+    }
+
     class CalWhereRes {
         long l0, r0, l1, r1;
         boolean single;
@@ -347,12 +466,12 @@ public class Table {
     }
 
 
-    private String printEntry(Map<String, Object> entry) {
+    private String printEntry(List<Field> projected, Map<String, Object> entry) throws Exception {
         StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field field = fields.get(i);
+        for (int i = 0; i < projected.size(); i++) {
+            Field field = projected.get(i);
             sb.append(field.printValue(entry.get(field.fieldName)));
-            if(i == fields.size()-1) {
+            if(i == projected.size()-1) {
                 sb.append("]");
             } else {
                 sb.append(", ");
@@ -366,7 +485,7 @@ public class Table {
         Map<String, Object> entry = new HashMap<>();
         // 根据表定义的Field顺序解析出每个字段的值
         for (Field field : fields) {
-            ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
+            ParseValueRes r = field.parserValue(raw, pos);
             entry.put(field.fieldName, r.v);
             // 根据字段解析的类型，计算出需要跳过的字节数
             pos += r.shift;
@@ -379,10 +498,10 @@ public class Table {
      * @param entry
      * @return
      */
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
         byte[] raw = new byte[0];
         for (Field field : fields) {
-            raw = Bytes.concat(raw, field.value2Raw(entry.get(field.fieldName)));
+            raw = Bytes.concat(raw, field.value2Raw(xid, entry.get(field.fieldName)));
         }
         return raw;
     }
@@ -23,14 +23,23 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /**
+     * 停止后台清理线程并等待它退出，之后才能关闭数据管理器和事务管理器
+     */
+    void close();
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.startVacuum(Vacuum.DEFAULT_INTERVAL_MILLIS);
+        return tbm;
     }
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.startVacuum(Vacuum.DEFAULT_INTERVAL_MILLIS);
+        return tbm;
     }
 }
@@ -6,6 +6,7 @@ import xiaolaa.main.mintdb.backend.utils.Parser;
 import xiaolaa.main.mintdb.backend.vm.VersionManager;
 import xiaolaa.main.mintdb.common.Error;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -26,6 +27,7 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private Vacuum vacuum;
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -34,9 +36,36 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        this.vacuum = new Vacuum(this);
         loadTables();
     }
 
+    // 启动后台清理线程
+    void startVacuum(long intervalMillis) {
+        vacuum.start(intervalMillis, Vacuum.DEFAULT_THROTTLE_MILLIS);
+    }
+
+    @Override
+    public void close() {
+        vacuum.stop();
+    }
+
+    /**
+     * 立即清理所有表一次，不做限速，返回回收的版本数
+     */
+    public int vacuum() throws Exception {
+        return vacuum.vacuumOnce(0);
+    }
+
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     private void loadTables() {
         // 第一张表的uid，通过uid可以获得第一张表的DataItem所在Page的位置及其偏移量
         long uid = firstTableUid();
@@ -90,7 +119,7 @@ public class TableManagerImpl implements TableManager {
             for (Table tb : t) {
                 sb.append(tb.toString()).append("\n");
             }
-            return sb.toString().getBytes();
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
         } finally {
             lock.unlock();
         }
@@ -134,7 +163,7 @@ public class TableManagerImpl implements TableManager {
         if(table == null) {
             throw Error.TableNotFoundException;
         }
-        return table.read(xid, read).getBytes();
+        return table.read(xid, read).getBytes(StandardCharsets.UTF_8);
     }
     @Override
     public byte[] update(long xid, Update update) throws Exception {
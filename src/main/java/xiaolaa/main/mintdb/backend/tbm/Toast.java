@@ -0,0 +1,106 @@
+package xiaolaa.main.mintdb.backend.tbm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import xiaolaa.main.mintdb.backend.common.SubArray;
+import xiaolaa.main.mintdb.backend.dm.DataManager;
+import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
+import xiaolaa.main.mintdb.backend.utils.Parser;
+import xiaolaa.main.mintdb.common.Error;
+
+/**
+ * 行外存储
+ * 超过THRESHOLD字节的字符串值切成若干块，每块作为一个数据项单独存放，块之间用链表相连，
+ * 行中只留下[-Length][ChunkUid]，使行保持短小，扫描时每页能放下更多的行
+ * 块的二进制格式为：
+ * [NextUid][Data]
+ * NextUid为0表示最后一块
+ *
+ * 块不经过版本管理，由引用它的行的版本决定可见性，每个版本拥有自己的块链
+ */
+class Toast {
+    // 超过该长度的字符串存放在行外
+    static final int THRESHOLD = 2048;
+    // 每块的数据长度，一块占满一个数据页
+    static final int CHUNK_SIZE = 8000;
+
+    /**
+     * 行外值的引用，只有在需要时才读取块链
+     */
+    static class Pointer {
+        long uid;
+        int length;
+
+        Pointer(long uid, int length) {
+            this.uid = uid;
+            this.length = length;
+        }
+    }
+
+    /**
+     * 将data分块写入，返回第一块的uid
+     * 从最后一块开始写，写每一块时它的后继已经有了uid
+     */
+    static long store(DataManager dm, long xid, byte[] data) throws Exception {
+        long next = 0;
+        int chunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for(int i = chunks-1; i >= 0; i --) {
+            int start = i*CHUNK_SIZE;
+            int length = Math.min(data.length, start+CHUNK_SIZE) - start;
+            byte[] chunk = new byte[8+length];
+            Parser.putLong(chunk, 0, next);
+            System.arraycopy(data, start, chunk, 8, length);
+            next = dm.insert(xid, chunk);
+        }
+        return next;
+    }
+
+    /**
+     * 将块链中的每一块标记为无效，返回各块的uid
+     */
+    static List<Long> purge(DataManager dm, Pointer p) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        long uid = p.uid;
+        while(uid != 0) {
+            DataItem di = dm.read(uid);
+            if(di == null) break;
+            try {
+                SubArray raw = di.data();
+                long next = Parser.parseLong(raw.raw, raw.start);
+                DataItem.purge(di);
+                uids.add(uid);
+                uid = next;
+            } finally {
+                di.release();
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 沿块链读出完整的值
+     * 块已被清理时抛出NullEntryException，只影响当前语句
+     */
+    static byte[] load(DataManager dm, Pointer p) throws Exception {
+        byte[] data = new byte[p.length];
+        int pos = 0;
+        long uid = p.uid;
+        while(uid != 0) {
+            DataItem di = dm.read(uid);
+            if(di == null) {
+                throw Error.NullEntryException;
+            }
+            try {
+                SubArray raw = di.data();
+                int len = raw.end - raw.start - 8;
+                System.arraycopy(raw.raw, raw.start+8, data, pos, len);
+                pos += len;
+                uid = Parser.parseLong(raw.raw, raw.start);
+            } finally {
+                di.release();
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,148 @@
+package xiaolaa.main.mintdb.backend.tbm;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import xiaolaa.main.mintdb.backend.utils.Panic;
+import xiaolaa.main.mintdb.backend.vm.VersionManager;
+
+/**
+ * 后台清理线程
+ * 每隔interval对所有表做一次清理：找出所有活跃事务都看不到的旧版本，删除它们的索引项，
+ * 标记数据项无效，再压缩其所在的页，回收的空间回到空闲空间映射中供插入复用。
+ * 被回收的数据项的槽要等到仍可能持有它们uid的事务都结束后才能复用：每一轮开始前结束的清理所回收的uid，
+ * 只可能被本轮的清理事务之前开始的事务持有，这些事务都已结束时，压缩时复用这些槽。
+ * 还有槽等待复用的页在之后的每一轮都再压缩一次
+ * 每检查THROTTLE_BATCH个版本暂停throttleMillis，避免与前台争抢IO和锁
+ */
+class Vacuum implements Runnable {
+
+    static final long DEFAULT_INTERVAL_MILLIS = 60_000;
+    static final long DEFAULT_THROTTLE_MILLIS = 10;
+    private static final int THROTTLE_BATCH = 64;
+
+    private TableManagerImpl tbm;
+    private long intervalNanos;
+    private long throttleMillis;
+    private Thread thread;
+
+    private Lock lock;
+    private Condition wakeUp;
+    private boolean stopped;
+
+    // 本轮有版本被回收的页，以及之前因为正被使用而没能压缩、或还有槽等待复用的页
+    private Set<Integer> pages;
+    private Set<Integer> pendingPages;
+    private int visited;
+
+    Vacuum(TableManagerImpl tbm) {
+        this.tbm = tbm;
+        this.lock = new ReentrantLock();
+        this.wakeUp = lock.newCondition();
+        this.pages = new HashSet<>();
+        this.pendingPages = new HashSet<>();
+    }
+
+    void start(long intervalMillis, long throttleMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.throttleMillis = throttleMillis;
+        thread = new Thread(this, "vacuum");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            lock.lock();
+            try {
+                long remain = intervalNanos;
+                while(!stopped && remain > 0) {
+                    remain = wakeUp.awaitNanos(remain);
+                }
+                if(stopped) return;
+            } catch(InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                vacuumOnce(throttleMillis);
+            } catch(Exception e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 停止清理线程，并等待正在进行的清理完成
+     */
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            wakeUp.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if(thread == null || thread == Thread.currentThread()) return;
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 清理所有表一次，返回回收的版本数
+     * 清理本身处于一个可重复读事务中，界限不会超过它开始时仍活跃的事务，
+     * 之后开始的事务看不到任何xmax小于界限的版本
+     */
+    synchronized int vacuumOnce(long throttleMillis) throws Exception {
+        VersionManager vm = tbm.vm;
+        long xid = vm.begin(1);
+        int purged = 0;
+        boolean release;
+        visited = 0;
+        pages.addAll(pendingPages);
+        pendingPages.clear();
+        try {
+            long horizon = vm.vacuumHorizon();
+            for(Table tb : tbm.tables()) {
+                purged += tb.vacuum(this, horizon, throttleMillis);
+            }
+            // 之前几轮回收的uid只可能被本事务之前开始的事务持有
+            release = !vm.hasActiveBefore(xid);
+        } finally {
+            // 清理事务只用于固定界限，不写入任何版本
+            vm.abort(xid);
+        }
+        for(int pgno : pages) {
+            if(tbm.dm.compactPage(pgno, release)) {
+                pendingPages.add(pgno);
+            }
+        }
+        pages.clear();
+        return purged;
+    }
+
+    void addPage(long uid) {
+        pages.add((int)(uid >>> 32));
+    }
+
+    // 每检查一批版本暂停一次
+    void throttle(long throttleMillis) {
+        if(++ visited % THROTTLE_BATCH != 0 || throttleMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(throttleMillis);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
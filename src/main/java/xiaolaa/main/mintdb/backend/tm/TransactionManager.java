@@ -7,6 +7,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
+import xiaolaa.main.mintdb.backend.dm.logger.Logger;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.common.Error;
 
@@ -17,6 +18,14 @@ public interface TransactionManager {
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
+    /**
+     * 由DataManager注入日志，之后提交和回滚的状态随日志的组提交落盘
+     */
+    void setLogger(Logger logger);
+    /**
+     * 将事务状态同步到磁盘，检查点删除旧日志之前调用
+     */
+    void sync();
     void close();
 
     public static TransactionManagerImpl create(String path) {
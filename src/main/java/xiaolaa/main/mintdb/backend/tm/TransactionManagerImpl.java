@@ -2,17 +2,33 @@ package xiaolaa.main.mintdb.backend.tm;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import xiaolaa.main.mintdb.backend.dm.Recover;
+import xiaolaa.main.mintdb.backend.dm.logger.Logger;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.backend.utils.Parser;
 import xiaolaa.main.mintdb.common.Error;
 
 /**
  * 头部8个字节用于记录事务总数
+ *
+ * 所有事务的状态同时保存在内存的数组中，查询状态不访问文件；
+ * 状态变更先写入文件再更新数组，文件格式不变
+ *
+ * XID按块预留：一次把文件扩展XID_BLOCK个状态为活跃的位置，同步后再更新头部并同步，
+ * 之后块内的begin不再写文件。头部记录的是已预留的XID数，预留了但没有使用的XID一直是活跃状态，
+ * 不会出现在任何日志和数据中，对恢复没有影响；
+ * 扩展落盘而头部没有落盘时，文件会比头部记录的更长，多出的位置在下次预留时被覆盖
+ *
+ * 注入日志后，提交和回滚除了写xid文件外还写一条状态日志，随日志的组提交落盘，
+ * xid文件只在检查点和关闭时同步；恢复时根据状态日志补上未落盘的状态
  */
 public class TransactionManagerImpl implements TransactionManager {
 
@@ -30,22 +46,54 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final long SUPER_XID = 0;
 
     static final String XID_SUFFIX = ".xid";
-    
+
+    private static final VarHandle STATUS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final int MIN_CAPACITY = 1024;
+    // 一次预留的XID个数
+    private static final int XID_BLOCK = 256;
+
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private long xidCounter;    // 已预留的XID数，与文件头一致
+    private long nextXid;       // 下一个分配的XID
     private Lock counterLock;
 
+    private volatile Logger logger;
+
+    // 下标为xid的事务状态，超出数组的事务视为活跃；扩容和写入都在statusLock下，读取不加锁
+    private volatile byte[] status;
+    private Lock statusLock;
+
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        statusLock = new ReentrantLock();
         checkXIDCounter();
+        loadStatus();
+        nextXid = xidCounter + 1;
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
+    }
+
+    public void sync() {
+        // 关闭时已经同步过，之后的检查点不再需要同步
+        if(!fc.isOpen()) {
+            return;
+        }
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 实际长度可以更长：预留一块XID时扩展已经落盘而头部还没有更新
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -67,17 +115,32 @@ public class TransactionManagerImpl implements TransactionManager {
         }
         this.xidCounter = Parser.parseLong(buf.array());
         long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
     }
 
+    // 把文件中所有事务的状态读入内存
+    private void loadStatus() {
+        byte[] arr = new byte[(int)Math.max(MIN_CAPACITY, xidCounter + 1)];
+        ByteBuffer buf = ByteBuffer.wrap(arr, 1, (int)xidCounter);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, getXidPosition(buf.position())) < 0) break;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        status = arr;
+    }
+
     // 根据事务xid取得其在xid文件中对应的位置
     private long getXidPosition(long xid) {
         return LEN_XID_HEADER_LENGTH + (xid-1)*XID_FIELD_SIZE;
     }
 
     // 更新xid事务的状态为status
+    // 有日志时状态随状态日志落盘，xid文件不同步；否则立即同步xid文件
     private void updateXID(long xid, byte status) {
         // 获取xid在xid文件中的位置
         long offset = getXidPosition(xid);
@@ -85,43 +148,75 @@ public class TransactionManagerImpl implements TransactionManager {
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        try {
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        Logger lg = logger;
+        if(lg != null) {
+            lg.log(status == FIELD_TRAN_COMMITTED ? Recover.commitLog(xid) : Recover.abortLog(xid));
+        } else {
+            sync();
         }
+        setStatus(xid, status);
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    private void setStatus(long xid, byte value) {
+        statusLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            byte[] arr = status;
+            if(xid >= arr.length) {
+                arr = Arrays.copyOf(arr, (int)Math.max(arr.length * 2L, xid + 1));
+                status = arr;
+            }
+            STATUS.setVolatile(arr, (int)xid, value);
+        } finally {
+            statusLock.unlock();
         }
+    }
+
+    private byte getStatus(long xid) {
+        while(true) {
+            byte[] arr = status;
+            if(xid >= arr.length) {
+                return FIELD_TRAN_ACTIVE;
+            }
+            byte value = (byte)STATUS.getVolatile(arr, (int)xid);
+            // 读取期间数组被扩容，新的状态可能只写入了新数组，重新读取
+            if(arr == status) {
+                return value;
+            }
+        }
+    }
+
+    // 预留一块XID：扩展出状态为活跃的位置并同步，再更新XID Header并同步
+    // 头部不能先于扩展落盘，否则宕机后头部记录的长度超过文件长度
+    private void reserveXIDBlock() {
+        long reserved = xidCounter + XID_BLOCK;
+        ByteBuffer slots = ByteBuffer.allocate(XID_BLOCK * XID_FIELD_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(Parser.long2Byte(reserved));
         try {
+            long offset = getXidPosition(xidCounter + 1);
+            while(slots.hasRemaining()) {
+                fc.write(slots, offset + slots.position());
+            }
             fc.force(false);
+            fc.write(header, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        sync();
+        xidCounter = reserved;
     }
 
     // 开始一个事务，并返回XID
     public long begin() {
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
+            if(nextXid > xidCounter) {
+                reserveXIDBlock();
+            }
+            return nextXid ++;
         } finally {
             counterLock.unlock();
         }
@@ -139,15 +234,7 @@ public class TransactionManagerImpl implements TransactionManager {
 
     // 检测XID事务是否处于status状态
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return getStatus(xid) == status;
     }
 
     public boolean isActive(long xid) {
@@ -166,6 +253,7 @@ public class TransactionManagerImpl implements TransactionManager {
     }
 
     public void close() {
+        sync();
         try {
             fc.close();
             file.close();
@@ -1,48 +1,94 @@
 package xiaolaa.main.mintdb.backend.utils;
 
-import java.nio.ByteBuffer;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
-import com.google.common.primitives.Bytes;
-
+/**
+ * 基本类型与字节数组之间的转换，统一使用大端序
+ * 带offset的读写方法直接在调用者提供的数组上读写，不拷贝也不分配对象
+ */
 public class Parser {
 
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     public static byte[] short2Byte(short value) {
-        return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
+        byte[] buf = new byte[Short.BYTES];
+        putShort(buf, 0, value);
+        return buf;
+    }
+
+    public static void putShort(byte[] buf, int offset, short value) {
+        SHORT.set(buf, offset, value);
     }
 
     public static short parseShort(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 2);
-        return buffer.getShort();
+        return parseShort(buf, 0);
+    }
+
+    public static short parseShort(byte[] buf, int offset) {
+        return (short)SHORT.get(buf, offset);
     }
 
     public static byte[] int2Byte(int value) {
-        return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
+        byte[] buf = new byte[Integer.BYTES];
+        putInt(buf, 0, value);
+        return buf;
+    }
+
+    public static void putInt(byte[] buf, int offset, int value) {
+        INT.set(buf, offset, value);
     }
 
     public static int parseInt(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 4);
-        return buffer.getInt();
+        return parseInt(buf, 0);
+    }
+
+    public static int parseInt(byte[] buf, int offset) {
+        return (int)INT.get(buf, offset);
     }
 
     public static long parseLong(byte[] buf) {
-        ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
-        return buffer.getLong();
+        return parseLong(buf, 0);
+    }
+
+    public static long parseLong(byte[] buf, int offset) {
+        return (long)LONG.get(buf, offset);
     }
 
     public static byte[] long2Byte(long value) {
-        return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
+        byte[] buf = new byte[Long.BYTES];
+        putLong(buf, 0, value);
+        return buf;
+    }
+
+    public static void putLong(byte[] buf, int offset, long value) {
+        LONG.set(buf, offset, value);
     }
 
     public static ParseStringRes parseString(byte[] raw) {
-        int length = parseInt(Arrays.copyOf(raw, 4));
-        String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
+        return parseString(raw, 0);
+    }
+
+    /**
+     * 从raw的offset处解析一个字符串，next为其占用的字节数
+     */
+    public static ParseStringRes parseString(byte[] raw, int offset) {
+        int length = parseInt(raw, offset);
+        String str = new String(raw, offset+4, length, StandardCharsets.UTF_8);
         return new ParseStringRes(str, length+4);
     }
 
     public static byte[] string2Byte(String str) {
-        byte[] l = int2Byte(str.length());
-        return Bytes.concat(l, str.getBytes());
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        byte[] buf = new byte[4+bytes.length];
+        putInt(buf, 0, bytes.length);
+        System.arraycopy(bytes, 0, buf, 4, bytes.length);
+        return buf;
     }
 
      /**
@@ -56,7 +102,7 @@ public class Parser {
         // 初始化种子值，用于在迭代计算中乘以当前结果
         long seed = 13331;
         long res = 0;
-        for(byte b : key.getBytes()) {
+        for(byte b : key.getBytes(StandardCharsets.UTF_8)) {
             // 计算新的结果值：前一个结果 * 种子值 + 当前字符的字节值
             res = res * seed + (long)b;
         }
@@ -64,5 +110,37 @@ public class Parser {
         return res;
     }
 
+    // 字符串key中保持顺序的前缀字节数，其余2字节是整个字符串的哈希
+    private static final int KEY_PREFIX = 6;
+
+    /**
+     * 将字符串转换为索引key：[Prefix 6][Hash 2]
+     * Prefix是UTF-8编码的前6字节，不足补0，Hash区分前缀相同的长字符串，使等值查询很少需要复核多行
+     * 结果翻转符号位，使有符号比较与前缀的无符号字典序一致：前缀不同时 a < b 则 str2Key(a) < str2Key(b)，
+     * 前缀相同的字符串之间没有顺序，范围查询的边界用str2KeyBound取整个前缀
+     */
+    public static long str2Key(String key) {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        int h = Arrays.hashCode(bytes);
+        return prefix(bytes) | ((h ^ (h >>> 16)) & 0xFFFF);
+    }
+
+    /**
+     * 与key前缀相同的字符串中最小（upper为false）或最大（upper为true）的key
+     */
+    public static long str2KeyBound(String key, boolean upper) {
+        return prefix(key.getBytes(StandardCharsets.UTF_8)) | (upper ? 0xFFFF : 0);
+    }
+
+    private static long prefix(byte[] bytes) {
+        long res = 0;
+        for(int i = 0; i < KEY_PREFIX; i ++) {
+            res <<= 8;
+            if(i < bytes.length) {
+                res |= bytes[i] & 0xFF;
+            }
+        }
+        return (res << 16) ^ Long.MIN_VALUE;
+    }
 
 }
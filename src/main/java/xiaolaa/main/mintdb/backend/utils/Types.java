@@ -1,9 +1,10 @@
 package xiaolaa.main.mintdb.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    // uid的高32位为页号，低16位为页内的槽号
+    public static long addressToUid(int pgno, short slot) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)slot;
         return u0 << 32 | u1;
     }
 }
@@ -1,9 +1,5 @@
 package xiaolaa.main.mintdb.backend.vm;
 
-import java.util.Arrays;
-
-import com.google.common.primitives.Bytes;
-
 import xiaolaa.main.mintdb.backend.common.SubArray;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
 import xiaolaa.main.mintdb.backend.utils.Parser;
@@ -40,9 +36,10 @@ public class Entry {
     }
 
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];
-        return Bytes.concat(xmin, xmax, data);
+        byte[] raw = new byte[OF_DATA+data.length];
+        Parser.putLong(raw, OF_XMIN, xid);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
     }
 
     public void release() {
@@ -70,7 +67,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -80,7 +77,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start+OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
@@ -90,7 +87,7 @@ public class Entry {
         dataItem.before();
         try {
             SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start+OF_XMAX, 8);
+            Parser.putLong(sa.raw, sa.start+OF_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
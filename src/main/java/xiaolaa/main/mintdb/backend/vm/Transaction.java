@@ -10,6 +10,9 @@ public class Transaction {
     public long xid;
     public int level;
     public Map<Long, Boolean> snapshot;
+    // 开始时仍活跃的最小xid，包括自己。读已提交的事务没有快照，但读到的版本的xmax可能在读取之后提交，
+    // 事务结束前xmax不小于它的版本不能回收，否则之后读取行外的值时块链已被清理
+    public long horizon;
     public Exception err;
     public boolean autoAborted;
 
@@ -17,6 +20,14 @@ public class Transaction {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.horizon = xid;
+        if(active != null) {
+            for(Long x : active.keySet()) {
+                if(x != TransactionManagerImpl.SUPER_XID) {
+                    t.horizon = Math.min(t.horizon, x);
+                }
+            }
+        }
         if(level != 0) {
             t.snapshot = new HashMap<>();
             for(Long x : active.keySet()) {
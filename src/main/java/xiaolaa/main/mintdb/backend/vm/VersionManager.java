@@ -8,6 +8,25 @@ public interface VersionManager {
     long insert(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
+    /**
+     * 清理的界限：删除版本的事务已提交且xid小于该值时，没有活跃事务能看到这个版本
+     * 取所有活跃事务的Transaction.horizon中的最小值，读已提交的事务也计算在内，调用者自己必须处于一个事务中
+     */
+    long vacuumHorizon();
+    /**
+     * uid处的版本对所有事务都不可见时返回其内容，否则返回null
+     */
+    byte[] readDead(long horizon, long uid) throws Exception;
+    /**
+     * 回收uid处的版本，调用者需先删除指向它的索引项
+     */
+    void purge(long uid) throws Exception;
+    /**
+     * 是否有在xid之前开始的事务仍然活跃
+     * 都已结束时，xid开始之前回收的版本的uid不再被任何事务持有
+     */
+    boolean hasActiveBefore(long xid);
+
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
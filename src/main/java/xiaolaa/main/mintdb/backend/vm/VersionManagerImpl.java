@@ -8,6 +8,7 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import xiaolaa.main.mintdb.backend.common.AbstractCache;
 import xiaolaa.main.mintdb.backend.dm.DataManager;
+import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
 import xiaolaa.main.mintdb.backend.tm.TransactionManager;
 import xiaolaa.main.mintdb.backend.tm.TransactionManagerImpl;
 import xiaolaa.main.mintdb.backend.utils.Panic;
@@ -139,6 +140,72 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    @Override
+    public long vacuumHorizon() {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for(Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) continue;
+                horizon = Math.min(horizon, t.horizon);
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean hasActiveBefore(long xid) {
+        lock.lock();
+        try {
+            for(long x : activeTransaction.keySet()) {
+                if(x != TransactionManagerImpl.SUPER_XID && x < xid) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] readDead(long horizon, long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if(Visibility.isDead(tm, entry, horizon)) {
+                return entry.data();
+            }
+            return null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public void purge(long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return;
+        }
+        try {
+            // 不属于任何事务，恢复时不会被撤销
+            DataItem.purge(di);
+        } finally {
+            di.release();
+        }
+    }
+
     @Override
     public long begin(int level) {
         lock.lock();
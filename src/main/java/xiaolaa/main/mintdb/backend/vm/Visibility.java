@@ -13,6 +13,15 @@ public class Visibility {
         }
     }
 
+    /**
+     * 版本对所有事务都不可见：插入它的事务已回滚，或删除它的事务已提交且早于horizon
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon) {
+        if(tm.isAborted(e.getXmin())) return true;
+        long xmax = e.getXmax();
+        return xmax != 0 && xmax < horizon && tm.isCommitted(xmax);
+    }
+
     public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
         if (t.level == 0) {
             return readCommitted(tm, t, e);
@@ -1,5 +1,6 @@
 package xiaolaa.main.mintdb.client;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class Shell {
@@ -19,8 +20,8 @@ public class Shell {
                     break;
                 }
                 try {
-                    byte[] res = client.execute(statStr.getBytes());
-                    System.out.println(new String(res));
+                    byte[] res = client.execute(statStr.getBytes(StandardCharsets.UTF_8));
+                    System.out.println(new String(res, StandardCharsets.UTF_8));
                 } catch(Exception e) {
                     System.out.println(e.getMessage());
                 }
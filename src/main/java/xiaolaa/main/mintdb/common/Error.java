@@ -21,6 +21,10 @@ public class Error {
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
+    // im
+    public static final Exception InvalidBalanceException = new RuntimeException("Invalid B+ tree balance!");
+    public static final Exception UnsortedBulkLoadException = new RuntimeException("Bulk load keys are not sorted!");
+
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
@@ -1,5 +1,6 @@
 package xiaolaa.main.mintdb.transport;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import com.google.common.primitives.Bytes;
@@ -23,7 +24,7 @@ public class Encoder {
             if(err.getMessage() != null) {
                 msg = err.getMessage();
             }
-            return Bytes.concat(new byte[]{1}, msg.getBytes());
+            return Bytes.concat(new byte[]{1}, msg.getBytes(StandardCharsets.UTF_8));
         } else {
             return Bytes.concat(new byte[]{0}, pkg.getData());
         }
@@ -37,7 +38,7 @@ public class Encoder {
             return new Package(Arrays.copyOfRange(data, 1, data.length), null);
         } else if(data[0] == 1) {
             // 获取错误
-            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length))));
+            return new Package(null, new RuntimeException(new String(Arrays.copyOfRange(data, 1, data.length), StandardCharsets.UTF_8)));
         } else {
             throw Error.InvalidPkgDataException;
         }
@@ -1,11 +1,18 @@
 package top.guoziyang.mydb.backend.common;
 
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
+import xiaolaa.main.mintdb.backend.common.AbstractCache;
+import xiaolaa.main.mintdb.backend.common.ClockPolicy;
+import xiaolaa.main.mintdb.backend.common.EvictionPolicy;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.common.Error;
 
@@ -46,4 +53,91 @@ public class CacheTest {
         }
         cdl.countDown();
     }
+
+    @Test
+    public void testConcurrentLoadSameKey() throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        AbstractCache<Long> slow = new AbstractCache<Long>(10) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                Thread.sleep(50);
+                return key;
+            }
+
+            @Override
+            protected void releaseForCache(Long obj) {}
+        };
+        int noWorkers = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(noWorkers);
+        for(int i = 0; i < noWorkers; i ++) {
+            new Thread(() -> {
+                try {
+                    start.await();
+                    long h = slow.get(7);
+                    assert h == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        assert loads.get() == 1;
+        for(int i = 0; i < noWorkers; i ++) {
+            slow.release(7);
+        }
+    }
+
+    @Test
+    public void testPinnedVictimStaysEvictable() throws Exception {
+        AtomicBoolean armed = new AtomicBoolean(false);
+        List<PinningCache> holder = new ArrayList<>();
+        List<Long> pinned = new ArrayList<>();
+        // 模拟策略选出牺牲者之后、驱逐之前，检查点线程通过pinIf引用了它
+        ClockPolicy policy = new ClockPolicy() {
+            @Override
+            public synchronized long evict() {
+                long victim = super.evict();
+                if(victim >= 0 && armed.getAndSet(false)) {
+                    pinned.addAll(holder.get(0).pin(victim));
+                }
+                return victim;
+            }
+        };
+        PinningCache cache = new PinningCache(2, policy);
+        holder.add(cache);
+        cache.get(1); cache.release(1);
+        cache.get(2); cache.release(2);
+
+        armed.set(true);
+        cache.get(3);
+        assert pinned.size() == 1;
+        cache.release(pinned.get(0));
+
+        // 3仍被引用，只能驱逐被pinIf引用过的那一个
+        cache.get(4);
+        cache.release(3);
+        cache.release(4);
+    }
+
+    static class PinningCache extends AbstractCache<Long> {
+        PinningCache(int maxResource, EvictionPolicy policy) {
+            super(maxResource, policy);
+        }
+
+        List<Long> pin(long key) {
+            return pinIf(obj -> obj == key);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
 }
@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,6 +15,7 @@ import org.junit.Test;
 
 import xiaolaa.main.mintdb.backend.common.SubArray;
 import xiaolaa.main.mintdb.backend.dm.DataManager;
+import xiaolaa.main.mintdb.backend.dm.DataManagerImpl;
 import xiaolaa.main.mintdb.backend.dm.dataItem.DataItem;
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
@@ -110,7 +112,8 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        new File("/tmp/TESTDMSingle.log.000001").delete();
+        new File("/tmp/TESTDMSingle.fsm").delete();
     }
 
     @Test
@@ -130,7 +133,8 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        new File("/tmp/TestDMMulti.log.000001").delete();
+        new File("/tmp/TestDMMulti.fsm").delete();
     }
 
     @Test
@@ -155,8 +159,280 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
         
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        new File("/tmp/TestRecoverySimple.log.000001").delete();
+        new File("/tmp/TestRecoverySimple.fsm").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testRecoveryFromCheckpoint() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestRecoveryCkpt", PageCache.PAGE_SIZE*10, tm0);
+
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 300; i ++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        ((DataManagerImpl)dm0).checkpoint();
+        // 检查点之后的插入和更新只存在于日志中
+        for(int i = 0; i < 300; i ++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        for(int i = 0; i < uids.size(); i += 7) {
+            byte[] data = RandomUtil.randomBytes(60);
+            DataItem di = dm0.read(uids.get(i));
+            di.before();
+            SubArray s = di.data();
+            System.arraycopy(data, 0, s.raw, s.start, data.length);
+            di.after(0);
+            di.release();
+            datas.set(i, data);
+        }
+
+        // 不关闭直接重新打开，模拟宕机，并用多个线程重做
+        DataManager dm1 = DataManager.open("/tmp/TestRecoveryCkpt", PageCache.PAGE_SIZE*10, tm0, 4);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+        dm1.close();
+
+        new File("/tmp/TestRecoveryCkpt.db").delete();
+        new File("/tmp/TestRecoveryCkpt.log.000001").delete();
+        new File("/tmp/TestRecoveryCkpt.fsm").delete();
+    }
+
+    @Test
+    public void testRecoverStatusFromLog() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestRecoverStatus");
+        DataManager dm0 = DataManager.create("/tmp/TestRecoverStatus", PageCache.PAGE_SIZE*10, tm0);
+        long committed = tm0.begin();
+        dm0.insert(committed, RandomUtil.randomBytes(60));
+        tm0.commit(committed);
+        long active = tm0.begin();
+        dm0.insert(active, RandomUtil.randomBytes(60));
+
+        // 模拟宕机时xid文件中的提交状态没有落盘，只有日志中有记录
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/TestRecoverStatus.xid", "rw")) {
+            raf.seek(8 + committed - 1);
+            raf.write(0);
+        }
+        TransactionManager tm1 = TransactionManager.open("/tmp/TestRecoverStatus");
+        assert tm1.isActive(committed);
+        DataManager dm1 = DataManager.open("/tmp/TestRecoverStatus", PageCache.PAGE_SIZE*10, tm1);
+        assert tm1.isCommitted(committed);
+        assert tm1.isAborted(active);
+        dm1.close();
+        tm1.close();
+
+        new File("/tmp/TestRecoverStatus.db").delete();
+        new File("/tmp/TestRecoverStatus.log.000001").delete();
+        new File("/tmp/TestRecoverStatus.fsm").delete();
+        new File("/tmp/TestRecoverStatus.xid").delete();
+    }
+
+    @Test
+    public void testCloseAfterTM() throws Exception {
+        TransactionManager tm0 = TransactionManager.create("/tmp/TestCloseAfterTM");
+        DataManager dm0 = DataManager.create("/tmp/TestCloseAfterTM", PageCache.PAGE_SIZE*10, tm0);
+        long xid = tm0.begin();
+        byte[] data = RandomUtil.randomBytes(60);
+        long uid = dm0.insert(xid, data);
+        tm0.commit(xid);
+        // 事务管理器先关闭时，数据管理器仍能完成检查点并正常关闭
+        tm0.close();
+        dm0.close();
+        assert new File("/tmp/TestCloseAfterTM.fsm").exists();
+
+        TransactionManager tm1 = TransactionManager.open("/tmp/TestCloseAfterTM");
+        DataManager dm1 = DataManager.open("/tmp/TestCloseAfterTM", PageCache.PAGE_SIZE*10, tm1);
+        assert tm1.isCommitted(xid);
+        DataItem di = dm1.read(uid);
+        SubArray sa = di.data();
+        assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), data);
+        di.release();
+        dm1.close();
+        tm1.close();
+
+        new File("/tmp/TestCloseAfterTM.db").delete();
+        new File("/tmp/TestCloseAfterTM.log.000001").delete();
+        new File("/tmp/TestCloseAfterTM.fsm").delete();
+        new File("/tmp/TestCloseAfterTM.xid").delete();
+    }
+
+    @Test
+    public void testMappedDataManager() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMMapped", PageCache.PAGE_SIZE*10, tm0, true);
+        byte[] data = RandomUtil.randomBytes(60);
+        long uid = dm0.insert(0, data);
+        dm0.close();
+
+        // 内存映射的页缓存与普通页缓存可以打开同一个文件
+        for(boolean mapped : new boolean[]{true, false}) {
+            DataManager dm1 = DataManager.open("/tmp/TestDMMapped", PageCache.PAGE_SIZE*10, tm0, 1, mapped);
+            DataItem di = dm1.read(uid);
+            SubArray sa = di.data();
+            assert Arrays.equals(Arrays.copyOfRange(sa.raw, sa.start, sa.end), data);
+            di.release();
+            dm1.close();
+        }
+
+        new File("/tmp/TestDMMapped.db").delete();
+        new File("/tmp/TestDMMapped.log.000001").delete();
+        new File("/tmp/TestDMMapped.fsm").delete();
+    }
+
+    @Test
+    public void testOpenWithFreeSpaceMap() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMFsm", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < 200; i ++) {
+            dm0.insert(0, RandomUtil.randomBytes(60));
+        }
+        dm0.close();
+        long pageNumber = new File("/tmp/TestDMFsm.db").length() / PageCache.PAGE_SIZE;
+        assert new File("/tmp/TestDMFsm.fsm").length() == 12 + pageNumber;
+
+        // 正常关闭后读入映射，未写满的页仍可继续插入
+        DataManager dm1 = DataManager.open("/tmp/TestDMFsm", PageCache.PAGE_SIZE*10, tm0);
+        long uid = dm1.insert(0, RandomUtil.randomBytes(60));
+        assert (uid >>> 32) <= pageNumber;
+        dm1.close();
+
+        // 映射文件缺失时扫描所有页重建
+        assert new File("/tmp/TestDMFsm.fsm").delete();
+        DataManager dm2 = DataManager.open("/tmp/TestDMFsm", PageCache.PAGE_SIZE*10, tm0);
+        uid = dm2.insert(0, RandomUtil.randomBytes(60));
+        assert (uid >>> 32) <= pageNumber;
+        dm2.close();
+
+        new File("/tmp/TestDMFsm.db").delete();
+        new File("/tmp/TestDMFsm.log.000001").delete();
+        new File("/tmp/TestDMFsm.fsm").delete();
+    }
+
+    @Test
+    public void testCompactPage() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMCompact", PageCache.PAGE_SIZE*10, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 60; i ++) {
+            byte[] data = RandomUtil.randomBytes(100);
+            uids.add(dm0.insert(0, data));
+            datas.add(data);
+        }
+        int pgno = (int)(uids.get(0) >>> 32);
+        ((DataManagerImpl)dm0).checkpoint();
+        // 作废一半数据项
+        for(int i = 0; i < uids.size(); i += 2) {
+            DataItem di = dm0.read(uids.get(i));
+            di.before();
+            di.getRaw().raw[di.getRaw().start] = (byte)1;
+            di.after(0);
+            di.release();
+        }
+        // 有数据项被引用时不压缩，留待之后再处理
+        DataItem held = dm0.read(uids.get(1));
+        assert ((DataManagerImpl)dm0).compactPage(pgno, false);
+        held.release();
+        // 作废的槽可能仍被引用，永不复用，压缩后不需要再处理
+        assert !((DataManagerImpl)dm0).compactPage(pgno, false);
+        assert !((DataManagerImpl)dm0).compactPage(pgno, true);
+
+        // 压缩后uid不变，回收的空间被新的插入使用
+        long uid = dm0.insert(0, RandomUtil.randomBytes(100));
+        assert (int)(uid >>> 32) == pgno;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm0.read(uids.get(i));
+            if(i % 2 == 0) {
+                assert di == null;
+                continue;
+            }
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+
+        // 不关闭直接重新打开，重做压缩
+        DataManager dm1 = DataManager.open("/tmp/TestDMCompact", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 1; i < uids.size(); i += 2) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+        assert dm1.read(uids.get(0)) == null;
+        assert dm1.read(uid) != null;
+        dm1.close();
+
+        new File("/tmp/TestDMCompact.db").delete();
+        new File("/tmp/TestDMCompact.log.000001").delete();
+        new File("/tmp/TestDMCompact.fsm").delete();
+    }
+
+    @Test
+    public void testCompactChurn() throws Exception {
+        TransactionManager tm0 = new MockTransactionManager();
+        DataManager dm0 = DataManager.create("/tmp/TestDMChurn", PageCache.PAGE_SIZE*10, tm0);
+        // 最后一个数据项一直有效，槽目录末尾的槽不会被去掉，只能复用前面的槽
+        int batch = 20;
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < batch-1; i ++) {
+            uids.add(dm0.insert(0, RandomUtil.randomBytes(40)));
+        }
+        byte[] keeperData = RandomUtil.randomBytes(40);
+        long keeper = dm0.insert(0, keeperData);
+        int pgno = (int)(keeper >>> 32);
+
+        // 每轮清理上一轮插入的数据项，再插入一批；槽数和页数都不再增长
+        List<byte[]> datas = new ArrayList<>();
+        for(int round = 0; round < 300; round ++) {
+            for(long uid : uids) {
+                DataItem di = dm0.read(uid);
+                DataItem.purge(di);
+                di.release();
+            }
+            // 第一次压缩时回收的槽可能仍被之前的事务持有，第二次压缩时才能复用
+            assert ((DataManagerImpl)dm0).compactPage(pgno, false);
+            assert !((DataManagerImpl)dm0).compactPage(pgno, true);
+            uids.clear();
+            datas.clear();
+            for(int i = 0; i < batch-1; i ++) {
+                byte[] data = RandomUtil.randomBytes(40);
+                long uid = dm0.insert(0, data);
+                assert (int)(uid >>> 32) == pgno;
+                assert (short)uid < batch;
+                uids.add(uid);
+                datas.add(data);
+            }
+        }
+
+        // 不关闭直接重新打开，重做复用了槽的插入和压缩
+        DataManager dm1 = DataManager.open("/tmp/TestDMChurn", PageCache.PAGE_SIZE*10, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray s = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(s.raw, s.start, s.end));
+            di.release();
+        }
+        DataItem di = dm1.read(keeper);
+        SubArray s = di.data();
+        assert Arrays.equals(keeperData, Arrays.copyOfRange(s.raw, s.start, s.end));
+        di.release();
+        dm1.close();
+
+        new File("/tmp/TestDMChurn.db").delete();
+        for(int i = 1; new File(String.format("/tmp/TestDMChurn.log.%06d", i)).delete(); i ++);
+        new File("/tmp/TestDMChurn.fsm").delete();
+    }
 }
@@ -52,6 +52,11 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public boolean compactPage(int pgno, boolean release) {
+        return false;
+    }
+
     @Override
     public void close() {}
     
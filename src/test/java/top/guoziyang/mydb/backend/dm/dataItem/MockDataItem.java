@@ -52,6 +52,16 @@ public class MockDataItem implements DataItem {
     @Override
     public void release() {}
 
+    @Override
+    public long tryOptimisticRead() {
+        return 0;
+    }
+
+    @Override
+    public boolean validate(long stamp) {
+        return false;
+    }
+
     @Override
     public void lock() {
         wLock.lock();
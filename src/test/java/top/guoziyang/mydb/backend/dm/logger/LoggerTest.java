@@ -1,6 +1,9 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 import xiaolaa.main.mintdb.backend.dm.logger.Logger;
@@ -44,6 +47,81 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File("/tmp/logger_test.log").delete();
+        assert new File("/tmp/logger_test.log.000001").delete();
+    }
+
+    @Test
+    public void testConcurrentLog() throws Exception {
+        Logger writer = Logger.create("/tmp/logger_concurrent_test", 100, 4096);
+        int threads = 16, perThread = 200;
+        CountDownLatch cdl = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t ++) {
+            final int id = t;
+            new Thread(() -> {
+                for(int i = 0; i < perThread; i ++) {
+                    writer.log((id + "-" + i).getBytes());
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        writer.close();
+
+        // 重新打开时会校验XChecksum，所有日志都应完整可读
+        Logger lg = Logger.open("/tmp/logger_concurrent_test");
+        lg.rewind();
+        Set<String> logs = new HashSet<>();
+        byte[] log;
+        while((log = lg.next()) != null) {
+            logs.add(new String(log));
+        }
+        lg.close();
+        assert logs.size() == threads * perThread;
+        for(int t = 0; t < threads; t ++) {
+            for(int i = 0; i < perThread; i ++) {
+                assert logs.contains(t + "-" + i);
+            }
+        }
+
+        assert new File("/tmp/logger_concurrent_test.log.000001").delete();
+    }
+
+    @Test
+    public void testSegments() {
+        int segmentSize = 1 << 16;
+        Logger lg = Logger.create("/tmp/logger_segment_test", 0, 1 << 20, segmentSize);
+        byte[] data = new byte[1000];
+        long[] lsns = new long[300];
+        for(int i = 0; i < lsns.length; i ++) {
+            data[0] = (byte)i;
+            lsns[i] = lg.log(data);
+        }
+        // 日志不跨段，且写满后会切换到新的段
+        for(long lsn : lsns) {
+            assert lsn / segmentSize == (lsn + 1008 - 1) / segmentSize;
+        }
+        assert new File("/tmp/logger_segment_test.log.000004").exists();
+
+        // 删除第200条日志所在段之前的段
+        lg.purge(lsns[200]);
+        assert !new File("/tmp/logger_segment_test.log.000001").exists();
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_segment_test");
+        lg.rewind();
+        assert lg.position() <= lsns[200];
+        int first = -1, count = 0;
+        byte[] log;
+        while((log = lg.next()) != null) {
+            if(first < 0) first = log[0] & 0xff;
+            count ++;
+        }
+        assert first + count == lsns.length;
+        assert lg.log(data) > lsns[lsns.length-1];
+        lg.close();
+
+        for(int i = 1; i <= 6; i ++) {
+            new File(String.format("/tmp/logger_segment_test.log.%06d", i)).delete();
+        }
     }
 }
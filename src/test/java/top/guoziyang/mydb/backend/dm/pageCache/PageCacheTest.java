@@ -11,8 +11,10 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import xiaolaa.main.mintdb.backend.common.LruKPolicy;
 import xiaolaa.main.mintdb.backend.dm.page.Page;
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
+import xiaolaa.main.mintdb.backend.dm.pageCache.PageCacheImpl;
 import xiaolaa.main.mintdb.backend.utils.Panic;
 import xiaolaa.main.mintdb.backend.utils.RandomUtil;
 
@@ -44,6 +46,157 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testPageCacheConcurrentRead() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_pread_test", PageCache.PAGE_SIZE * 10);
+        int noPages = 200;
+        for(int i = 1; i <= noPages; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            tmp[PageCache.PAGE_SIZE-1] = (byte)i;
+            pc.newPage(tmp);
+        }
+        int noWorkers = 8;
+        CountDownLatch cdl = new CountDownLatch(noWorkers);
+        for(int w = 0; w < noWorkers; w ++) {
+            new Thread(() -> {
+                for(int i = 0; i < 2000; i ++) {
+                    int pgno = Math.abs(random.nextInt() % noPages) + 1;
+                    try {
+                        Page pg = pc.getPage(pgno);
+                        assert pg.getData()[0] == (byte)pgno;
+                        assert pg.getData()[PageCache.PAGE_SIZE-1] == (byte)pgno;
+                        pg.release();
+                    } catch (Exception e) {
+                        Panic.panic(e);
+                    }
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        pc.close();
+        assert new File("/tmp/pcacher_pread_test.db").delete();
+    }
+
+    @Test
+    public void testMappedPageCache() throws Exception {
+        PageCache pc = PageCache.createMapped("/tmp/pcacher_mapped_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0 ; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            int pgno = pc.newPage(tmp);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[1] = (byte)i;
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_mapped_test.db").length() == 100L * PageCache.PAGE_SIZE;
+
+        // 与普通页缓存的文件格式相同
+        pc = PageCache.open("/tmp/pcacher_mapped_test", PageCache.PAGE_SIZE * 10);
+        assert pc.getPageNumber() == 100;
+        for(int i = 1; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            assert pg.getData()[1] == (byte)(i-1);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_mapped_test.db").delete();
+    }
+
+    @Test
+    public void testMappedPageCacheTruncate() throws Exception {
+        PageCache pc = PageCache.createMapped("/tmp/pcacher_mapped_trunc", PageCache.PAGE_SIZE * 10);
+        for(int i = 0 ; i < 10; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)(i+1);
+            pc.newPage(tmp);
+        }
+        // 截断推迟到close，解除映射之后才缩短文件
+        pc.truncateByBgno(4);
+        pc.close();
+        assert new File("/tmp/pcacher_mapped_trunc.db").length() == 4L * PageCache.PAGE_SIZE;
+
+        pc = PageCache.open("/tmp/pcacher_mapped_trunc", PageCache.PAGE_SIZE * 10);
+        assert pc.getPageNumber() == 4;
+        Page pg = pc.getPage(4);
+        assert pg.getData()[0] == 4;
+        pg.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_mapped_trunc.db").delete();
+    }
+
+    @Test
+    public void testMappedPageCacheCrashTail() throws Exception {
+        PageCache pc = PageCache.createMapped("/tmp/pcacher_mapped_crash", PageCache.PAGE_SIZE * 10);
+        for(int i = 0 ; i < 5; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)(i+1);
+            pc.newPage(tmp);
+        }
+        // 不关闭，模拟宕机：文件保留整个映射段的长度
+        assert new File("/tmp/pcacher_mapped_crash.db").length() > 5L * PageCache.PAGE_SIZE;
+
+        PageCache reopened = PageCache.openMapped("/tmp/pcacher_mapped_crash", PageCache.PAGE_SIZE * 10);
+        assert reopened.getPageNumber() == 5;
+        assert new File("/tmp/pcacher_mapped_crash.db").length() == 5L * PageCache.PAGE_SIZE;
+        Page pg = reopened.getPage(5);
+        assert pg.getData()[0] == 5;
+        pg.release();
+        reopened.close();
+
+        assert new File("/tmp/pcacher_mapped_crash.db").delete();
+    }
+
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        PageCacheImpl pc = PageCache.create("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10, new LruKPolicy(2));
+        for(int i = 0; i < 30; i ++) {
+            int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[0] = (byte)pgno;
+            pg.release();
+        }
+        // 反复访问的热点页应当一直驻留
+        long misses = pc.getMisses();
+        for(int i = 0; i < 5; i ++) {
+            for(int pgno = 2; pgno <= 30; pgno ++) {
+                Page hot = pc.getPage(1);
+                hot.release();
+                Page pg = pc.getPage(pgno);
+                assert pg.getData()[0] == (byte)pgno;
+                pg.release();
+            }
+        }
+        assert pc.getEvictions() > 0;
+        // 热点页最多在第一次访问时未命中
+        assert pc.getMisses() - misses <= 5*29 + 1;
+
+        // 池中全部被引用时不能再装入新页
+        Page[] pinned = new Page[10];
+        for(int i = 0; i < 10; i ++) {
+            pinned[i] = pc.getPage(i+1);
+        }
+        boolean full = false;
+        try {
+            pc.getPage(11);
+        } catch(Exception e) {
+            full = true;
+        }
+        assert full;
+        for(Page pg : pinned) {
+            pg.release();
+        }
+        pc.close();
+        assert new File("/tmp/pcacher_evict_test.db").delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
@@ -1,5 +1,8 @@
 package top.guoziyang.mydb.backend.dm.pageIndex;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import org.junit.Test;
 
 import xiaolaa.main.mintdb.backend.dm.pageCache.PageCache;
@@ -25,4 +28,35 @@ public class PageIndexTest {
             }
         }
     }
+
+    @Test
+    public void testConcurrentSelect() throws Exception {
+        PageIndex pIndex = new PageIndex();
+        int pages = 8, threads = 16;
+        for(int i = 1; i <= pages; i ++) {
+            pIndex.add(i, PageCache.PAGE_SIZE / 2);
+        }
+        AtomicIntegerArray held = new AtomicIntegerArray(pages+1);
+        CountDownLatch cdl = new CountDownLatch(threads);
+        boolean[] failed = new boolean[1];
+        for(int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                for(int k = 0; k < 10000; k ++) {
+                    PageInfo pi = pIndex.select(100);
+                    if(pi == null) continue;
+                    // 同一页不能同时被两个线程取出
+                    if(!held.compareAndSet(pi.pgno, 0, 1)) failed[0] = true;
+                    held.set(pi.pgno, 0);
+                    pIndex.add(pi.pgno, pi.freeSpace);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        assert !failed[0];
+        for(int i = 0; i < pages; i ++) {
+            assert pIndex.select(100) != null;
+        }
+        assert pIndex.select(100) == null;
+    }
 }
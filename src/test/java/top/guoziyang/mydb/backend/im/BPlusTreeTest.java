@@ -1,7 +1,12 @@
 package top.guoziyang.mydb.backend.im;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.junit.Test;
 
@@ -32,6 +37,282 @@ public class BPlusTreeTest {
         }
 
         assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        assert new File("/tmp/TestTreeSingle.log.000001").delete();
+        for(int i = 2; new File(String.format("/tmp/TestTreeSingle.log.%06d", i)).delete(); i ++);
+    }
+
+    @Test
+    public void testTreeDuplicateKeys() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDuplicate", PageCache.PAGE_SIZE*10, tm);
+
+        // 使用很小的节点，使树有多层且频繁分裂
+        long root = BPlusTree.create(dm, 4);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 每个key重复多次，相等的项会跨越分裂点分布在相邻的叶子中
+        int lim = 500, dup = 7;
+        for(int d = 0; d < dup; d ++) {
+            for(int i = 0; i < lim; i ++) {
+                tree.insert(i, (long)i*dup+d);
+            }
+        }
+
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).size() == dup;
+        }
+        assert tree.searchRange(100, 199).size() == 100*dup;
+
+        for(int i = 0; i < lim; i += 2) {
+            assert tree.delete(i, (long)i*dup+3);
+        }
+        assert !tree.delete(0, 3);
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == (i % 2 == 0 ? dup-1 : dup);
+        }
+
+        assert new File("/tmp/TestTreeDuplicate.db").delete();
+        assert new File("/tmp/TestTreeDuplicate.log.000001").delete();
+        for(int i = 2; new File(String.format("/tmp/TestTreeDuplicate.log.%06d", i)).delete(); i ++);
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*64, tm);
+
+        // 小节点使分裂和根节点的更换频繁发生
+        long root = BPlusTree.create(dm, 4);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int workers = 4, lim = 2000;
+        // 记录工作线程中第一个失败，join之后断言没有失败
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            final int no = w;
+            new Thread(() -> {
+                try {
+                    for(int i = 0; i < lim; i ++) {
+                        long key = (long)i*workers + no;
+                        tree.insert(key, key);
+                        // 自己插入的项随时可见
+                        if(!tree.search(key).contains(key)) {
+                            throw new AssertionError("key " + key + " not found after insert");
+                        }
+                    }
+                } catch(Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        if(failure.get() != null) {
+            throw new AssertionError("worker failed", failure.get());
+        }
+
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE);
+        assert uids.size() == workers*lim;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i;
+        }
+
+        dm.close();
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        new File("/tmp/TestTreeConcurrent.fsm").delete();
+        for(int i = 1; new File(String.format("/tmp/TestTreeConcurrent.log.%06d", i)).delete(); i ++);
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeBulkLoad", PageCache.PAGE_SIZE*64, tm);
+
+        // 每个key出现两次
+        int lim = 5000;
+        long[] keys = new long[lim*2];
+        long[] uids = new long[lim*2];
+        for(int i = 0; i < lim*2; i ++) {
+            keys[i] = i/2*2;
+            uids[i] = i;
+        }
+        long root = BPlusTree.bulkLoad(dm, 4, keys, uids);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> res = tree.search(i*2);
+            assert res.size() == 2;
+            assert res.get(0) == i*2 && res.get(1) == i*2+1;
+            assert tree.search(i*2+1).isEmpty();
+        }
+
+        // 建好的树可以继续插入，填满的节点正常分裂
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i*2+1, lim*2+i);
+        }
+        List<Long> all = tree.searchRange(0, Long.MAX_VALUE);
+        assert all.size() == lim*3;
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i*2+1).get(0) == lim*2+i;
+        }
+
+        dm.close();
+        assert new File("/tmp/TestTreeBulkLoad.db").delete();
+        new File("/tmp/TestTreeBulkLoad.fsm").delete();
+        for(int i = 1; new File(String.format("/tmp/TestTreeBulkLoad.log.%06d", i)).delete(); i ++);
+    }
+
+    @Test
+    public void testDeleteMerge() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeDeleteMerge", PageCache.PAGE_SIZE*64, tm);
+
+        long root = BPlusTree.create(dm, 4);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 3000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        // 删除大部分项，节点不断合并，树高降低
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        assert !tree.delete(1, 1);
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).size() == (i % 10 == 0 ? 1 : 0);
+        }
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE);
+        assert uids.size() == lim/10;
+        for(int i = 0; i < uids.size(); i ++) {
+            assert uids.get(i) == i*10;
+        }
+
+        // 全部删除后仍可继续使用
+        for(int i = 0; i < lim; i += 10) {
+            assert tree.delete(i, i);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).isEmpty();
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i+lim);
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert tree.search(i).get(0) == i+lim;
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim;
+
+        dm.close();
+        assert new File("/tmp/TestTreeDeleteMerge.db").delete();
+        new File("/tmp/TestTreeDeleteMerge.fsm").delete();
+        for(int i = 1; new File(String.format("/tmp/TestTreeDeleteMerge.log.%06d", i)).delete(); i ++);
+    }
+
+    @Test
+    public void testLookupDuringMerge() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeLookupMerge", PageCache.PAGE_SIZE*64, tm);
+
+        // 小节点使删除频繁触发合并和树高降低
+        long root = BPlusTree.create(dm, 4);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 3的倍数一直保留，其余的由删除线程删除，同时插入线程在更大的key上插入
+        int lim = 3000, deleters = 2;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean(false);
+        List<Thread> writers = new ArrayList<>();
+        for(int w = 0; w < deleters; w ++) {
+            final int no = w;
+            writers.add(new Thread(() -> {
+                try {
+                    for(int i = no; i < lim; i += deleters) {
+                        if(i % 3 != 0 && !tree.delete(i, i)) {
+                            throw new AssertionError("key " + i + " not deleted");
+                        }
+                    }
+                } catch(Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        writers.add(new Thread(() -> {
+            try {
+                for(int i = lim; i < lim*2; i ++) {
+                    tree.insert(i, i);
+                    if(tree.search(i).size() != 1) {
+                        throw new AssertionError("key " + i + " not found after insert");
+                    }
+                }
+            } catch(Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        }));
+        List<Thread> readers = new ArrayList<>();
+        for(int r = 0; r < 2; r ++) {
+            final int no = r;
+            readers.add(new Thread(() -> {
+                try {
+                    Random random = new Random(no);
+                    while(!done.get()) {
+                        // 保留的项在合并期间始终恰好能查到一次
+                        long key = random.nextInt(lim/3) * 3L;
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            throw new AssertionError("lookup of " + key + " returned " + uids);
+                        }
+                        long left = random.nextInt(lim);
+                        List<Long> range = tree.searchRange(left, left+60);
+                        long expected = left;
+                        for(long uid : range) {
+                            if(uid % 3 != 0) {
+                                continue;
+                            }
+                            while(expected % 3 != 0) expected ++;
+                            if(uid != expected) {
+                                throw new AssertionError("range from " + left + " returned " + range);
+                            }
+                            expected ++;
+                        }
+                        while(expected % 3 != 0) expected ++;
+                        if(expected <= Math.min(left+60, lim-1)) {
+                            throw new AssertionError("range from " + left + " returned " + range);
+                        }
+                    }
+                } catch(Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for(Thread t : readers) t.start();
+        for(Thread t : writers) t.start();
+        for(Thread t : writers) t.join();
+        done.set(true);
+        for(Thread t : readers) t.join();
+        if(failure.get() != null) {
+            throw new AssertionError("worker failed", failure.get());
+        }
+
+        List<Long> uids = tree.searchRange(0, Long.MAX_VALUE);
+        assert uids.size() == lim/3 + lim;
+        for(int i = 0; i < lim/3; i ++) {
+            assert uids.get(i) == i*3;
+        }
+        for(int i = 0; i < lim; i ++) {
+            assert uids.get(lim/3 + i) == lim + i;
+        }
+
+        dm.close();
+        assert new File("/tmp/TestTreeLookupMerge.db").delete();
+        new File("/tmp/TestTreeLookupMerge.fsm").delete();
+        for(int i = 1; new File(String.format("/tmp/TestTreeLookupMerge.log.%06d", i)).delete(); i ++);
     }
 }
@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.server;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
@@ -8,6 +9,7 @@ import org.junit.Test;
 import xiaolaa.main.mintdb.backend.dm.DataManager;
 import xiaolaa.main.mintdb.backend.server.Executor;
 import xiaolaa.main.mintdb.backend.tbm.TableManager;
+import xiaolaa.main.mintdb.backend.tbm.TableManagerImpl;
 import xiaolaa.main.mintdb.backend.tm.TransactionManager;
 import xiaolaa.main.mintdb.backend.vm.VersionManager;
 
@@ -35,13 +37,20 @@ public class ExecutorTest {
         }
     }
     
+    // 日志可能写满了多个段
+    private void deleteLogs() {
+        for(int i = 1; i < 100; i ++) {
+            new File(String.format("%s.log.%06d", path, i)).delete();
+        }
+    }
+
     @Test
     public void testInsert10000() throws Exception {
         Executor exe = testCreate();
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        deleteLogs();
         new File(path + ".xid").delete();
     }
 
@@ -73,7 +82,138 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        deleteLogs();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testToastString() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table toast_table id int32, body string (index id)".getBytes());
+        String body = "x".repeat(20000);
+        exe.execute(("insert into toast_table values 1 " + body).getBytes());
+
+        // 只输出id时不读取行外的值
+        assert "[1]\n".equals(new String(exe.execute("select id from toast_table where id = 1".getBytes())));
+        assert ("[1, " + body + "]\n").equals(new String(exe.execute("select * from toast_table where id = 1".getBytes())));
+
+        String updated = "y".repeat(3000);
+        exe.execute(("update toast_table set body = " + updated + " where id = 1").getBytes());
+        assert ("[" + updated + "]\n").equals(new String(exe.execute("select body from toast_table where id = 1".getBytes())));
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        deleteLogs();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        Executor exe = testCreate();
+        TableManagerImpl tbm = (TableManagerImpl)exe.tbm;
+        exe.execute("create table vacuum_table id int32, body string (index id)".getBytes());
+        exe.execute(("insert into vacuum_table values 1 " + "a".repeat(5000)).getBytes());
+        for(int i = 0; i < 5; i ++) {
+            exe.execute(("update vacuum_table set body = v" + i + " where id = 1").getBytes());
+        }
+
+        // 5个旧版本都已被提交的更新删除，其中第一个带有行外的值
+        assert tbm.vacuum() == 5;
+        assert tbm.vacuum() == 0;
+        assert "[1, v4]\n".equals(new String(exe.execute("select * from vacuum_table where id = 1".getBytes())));
+
+        exe.execute("delete from vacuum_table where id = 1".getBytes());
+        assert tbm.vacuum() == 1;
+        assert "".equals(new String(exe.execute("select * from vacuum_table where id = 1".getBytes())));
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        deleteLogs();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testVacuumWaitsForReadCommitted() throws Exception {
+        Executor exe = testCreate();
+        TableManagerImpl tbm = (TableManagerImpl)exe.tbm;
+        exe.execute("create table rc_table id int32, body string (index id)".getBytes());
+        exe.execute(("insert into rc_table values 1 " + "a".repeat(5000)).getBytes());
+
+        // reader在deleter提交前开始，可能已经读到了这一行，还持有行外值的引用
+        Executor deleter = new Executor(tbm);
+        Executor reader = new Executor(tbm);
+        deleter.execute("begin".getBytes());
+        reader.execute("begin".getBytes());
+        deleter.execute("delete from rc_table where id = 1".getBytes());
+        deleter.execute("commit".getBytes());
+        assert tbm.vacuum() == 0;
+
+        reader.execute("commit".getBytes());
+        assert tbm.vacuum() == 1;
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        deleteLogs();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testCloseAndReopen() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        TableManager tbm = TableManager.create(path, VersionManager.newVersionManager(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute(INSERT);
+        // 先停止后台清理，再依次关闭数据管理器和事务管理器
+        tbm.close();
+        dm.close();
+        tm.close();
+        assert new File(path + ".fsm").exists();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        tbm = TableManager.open(path, VersionManager.newVersionManager(tm, dm), dm);
+        exe = new Executor(tbm);
+        assert "[2333]\n".equals(new String(exe.execute("select * from test_table where id = 2333".getBytes())));
+        tbm.close();
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".fsm").delete();
+        deleteLogs();
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testStringIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table name_table name string, id int32 (index name)".getBytes());
+        String[] names = {"apple", "applesauce1", "applesauce2", "banana", "cherry", "date"};
+        for (int i = 0; i < names.length; i ++) {
+            exe.execute(("insert into name_table values " + names[i] + " " + i).getBytes());
+        }
+
+        // 前6字节相同的字符串之间没有顺序，范围查询要扫描整个前缀，由原值区分
+        assert "[2]\n".equals(new String(exe.execute("select id from name_table where name = applesauce2".getBytes())));
+        assert "[3]\n[4]\n".equals(new String(exe.execute("select id from name_table where name > applesauce2 and name < cherry1".getBytes())));
+        assert "[0]\n".equals(new String(exe.execute("select id from name_table where name < applesauce1".getBytes())));
+        assert new String(exe.execute("select * from name_table".getBytes())).split("\n").length == names.length;
+
+        exe.execute("delete from name_table where name = applesauce1".getBytes());
+        assert "[0]\n[2]\n".equals(new String(exe.execute("select id from name_table where name < b".getBytes())));
+
+        // 非ASCII的值在存储、索引key和复核中都按UTF-8处理
+        String city = "\u6df1\u5733";
+        exe.execute(("insert into name_table values '" + city + "' 9").getBytes(StandardCharsets.UTF_8));
+        assert "[9]\n".equals(new String(exe.execute(("select id from name_table where name = '" + city + "'").getBytes(StandardCharsets.UTF_8))));
+        assert ("[" + city + "]\n").equals(new String(exe.execute("select name from name_table where name > date".getBytes()), StandardCharsets.UTF_8));
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        deleteLogs();
         new File(path + ".xid").delete();
     }
 }
@@ -0,0 +1,37 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import org.junit.Test;
+
+import xiaolaa.main.mintdb.backend.parser.statement.SingleExpression;
+import xiaolaa.main.mintdb.backend.tbm.Field;
+import xiaolaa.main.mintdb.backend.tbm.FieldCalRes;
+
+public class FieldTest {
+
+    private static FieldCalRes cal(Field fd, String op, String value) throws Exception {
+        SingleExpression exp = new SingleExpression();
+        exp.field = "id";
+        exp.compareOp = op;
+        exp.value = value;
+        return fd.calExp(exp);
+    }
+
+    @Test
+    public void testCalExpBounds() throws Exception {
+        Field fd = new Field(null, "id", "int64", 0);
+
+        // 负数的key也在范围内
+        FieldCalRes r = cal(fd, "<", "-5");
+        assert r.left == Long.MIN_VALUE && r.right == -6;
+        r = cal(fd, "<", "0");
+        assert r.left == Long.MIN_VALUE && r.right == -1;
+        r = cal(fd, ">", "-5");
+        assert r.left == -4 && r.right == Long.MAX_VALUE;
+
+        // 边界值不会溢出，得到空范围
+        r = cal(fd, "<", String.valueOf(Long.MIN_VALUE));
+        assert r.left > r.right;
+        r = cal(fd, ">", String.valueOf(Long.MAX_VALUE));
+        assert r.left > r.right;
+    }
+}
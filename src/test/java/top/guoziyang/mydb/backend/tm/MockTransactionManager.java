@@ -1,5 +1,6 @@
 package top.guoziyang.mydb.backend.tm;
 
+import xiaolaa.main.mintdb.backend.dm.logger.Logger;
 import xiaolaa.main.mintdb.backend.tm.TransactionManager;
 
 public class MockTransactionManager implements TransactionManager {
@@ -30,6 +31,12 @@ public class MockTransactionManager implements TransactionManager {
         return false;
     }
 
+    @Override
+    public void setLogger(Logger logger) {}
+
+    @Override
+    public void sync() {}
+
     @Override
     public void close() {}
     
@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.tm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -40,6 +41,57 @@ public class TransactionManagerTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    @Test
+    public void testReopen() {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reopen_test");
+        int n = 3000;
+        for(int i = 1; i <= n; i ++) {
+            long xid = tm.begin();
+            if(i % 3 == 1) tm.commit(xid);
+            else if(i % 3 == 2) tm.abort(xid);
+        }
+        tm.close();
+
+        // 重新打开后状态从文件读入内存
+        tm = TransactionManager.open("/tmp/tranmger_reopen_test");
+        for(long xid = 1; xid <= n; xid ++) {
+            if(xid % 3 == 1) assert tm.isCommitted(xid);
+            else if(xid % 3 == 2) assert tm.isAborted(xid);
+            else assert tm.isActive(xid);
+        }
+        assert tm.isActive(n + 100000);
+        // 上次预留但没有用到的XID不会再分配
+        assert tm.begin() > n;
+        tm.close();
+        assert new File("/tmp/tranmger_reopen_test.xid").delete();
+    }
+
+    @Test
+    public void testReopenAfterTornReserve() throws Exception {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_torn_test");
+        long committed = tm.begin();
+        tm.commit(committed);
+        tm.close();
+
+        // 模拟预留时扩展已经落盘而头部没有更新
+        try(RandomAccessFile raf = new RandomAccessFile("/tmp/tranmger_torn_test.xid", "rw")) {
+            raf.setLength(raf.length() + 256);
+        }
+
+        tm = TransactionManager.open("/tmp/tranmger_torn_test");
+        assert tm.isCommitted(committed);
+        long xid = tm.begin();
+        assert xid > committed;
+        tm.abort(xid);
+        tm.close();
+
+        tm = TransactionManager.open("/tmp/tranmger_torn_test");
+        assert tm.isCommitted(committed);
+        assert tm.isAborted(xid);
+        tm.close();
+        assert new File("/tmp/tranmger_torn_test.xid").delete();
+    }
+
     private void worker() {
         boolean inTrans = false;
         long transXID = 0;
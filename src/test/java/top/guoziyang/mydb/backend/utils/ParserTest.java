@@ -0,0 +1,59 @@
+package top.guoziyang.mydb.backend.utils;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import xiaolaa.main.mintdb.backend.utils.ParseStringRes;
+import xiaolaa.main.mintdb.backend.utils.Parser;
+
+public class ParserTest {
+    @Test
+    public void testRoundTrip() {
+        long[] longs = {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 0x0102030405060708L};
+        byte[] buf = new byte[32];
+        for (long v : longs) {
+            // 与原来基于ByteBuffer的大端序编码保持一致，已有的数据文件和日志无需转换
+            assert ByteBuffer.wrap(Parser.long2Byte(v)).getLong() == v;
+            Parser.putLong(buf, 3, v);
+            assert Parser.parseLong(buf, 3) == v;
+            assert ByteBuffer.wrap(buf, 3, 8).getLong() == v;
+
+            Parser.putInt(buf, 5, (int)v);
+            assert Parser.parseInt(buf, 5) == (int)v;
+            assert Parser.parseInt(Parser.int2Byte((int)v)) == (int)v;
+
+            Parser.putShort(buf, 7, (short)v);
+            assert Parser.parseShort(buf, 7) == (short)v;
+            assert Parser.parseShort(Parser.short2Byte((short)v)) == (short)v;
+        }
+
+        // 与平台默认字符集无关，多字节字符按UTF-8编码
+        String str = "hello \u6570\u636e\u5e93";
+        byte[] raw = Parser.string2Byte(str);
+        assert Parser.parseInt(raw, 0) == 15;
+        byte[] shifted = new byte[raw.length+2];
+        System.arraycopy(raw, 0, shifted, 2, raw.length);
+        ParseStringRes res = Parser.parseString(shifted, 2);
+        assert str.equals(res.str);
+        assert res.next == raw.length;
+    }
+
+    @Test
+    public void testStr2KeyOrder() {
+        // 前6字节各不相同，key的顺序与字符串一致
+        String[] strs = {"", "a", "ab", "abcdef", "abcdeg", "abd", "b", "zzz", "\u00e9t\u00e9", "\u4e2d\u6587\u4e2d"};
+        for (int i = 0; i+1 < strs.length; i ++) {
+            assert Parser.str2Key(strs[i]) < Parser.str2Key(strs[i+1]);
+        }
+        // 前缀相同的字符串由哈希区分，都落在前缀的边界之内
+        String[] shared = {"abcdefgh", "abcdefghij", "abcdefz", "abcdef"};
+        long low = Parser.str2KeyBound("abcdef", false), high = Parser.str2KeyBound("abcdef", true);
+        for (String str : shared) {
+            long key = Parser.str2Key(str);
+            assert low <= key && key <= high;
+        }
+        assert Parser.str2Key("abcdefgh") != Parser.str2Key("abcdefghij");
+        assert Parser.str2KeyBound("abcdee", true) < low && high < Parser.str2KeyBound("abcdeg", false);
+    }
+}
@@ -2,6 +2,7 @@ package top.guoziyang.mydb.transport;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
@@ -14,11 +15,13 @@ import xiaolaa.main.mintdb.transport.Transporter;
 public class PackagerTest {
     @Test
     public void testPackager() throws Exception {
+        CountDownLatch listening = new CountDownLatch(1);
         new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
                     ServerSocket ss = new ServerSocket(10345);
+                    listening.countDown();
                     Socket socket = ss.accept();
                     Transporter t = new Transporter(socket);
                     Encoder e = new Encoder();
@@ -34,6 +37,7 @@ public class PackagerTest {
                 }    
             }
         }).start();
+        listening.await();
         Socket socket = new Socket("127.0.0.1", 10345);
         Transporter t = new Transporter(socket);
         Encoder e = new Encoder();